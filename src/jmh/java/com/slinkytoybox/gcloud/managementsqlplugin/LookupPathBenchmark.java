@@ -0,0 +1,361 @@
+/*
+ *   management-sql-plugin - LookupPathBenchmark.java
+ *
+ *   Copyright (c) 2022-2023, Slinky Software
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as
+ *   published by the Free Software Foundation, either version 3 of the
+ *   License, or (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   A copy of the GNU Affero General Public License is located in the 
+ *   AGPL-3.0.md supplied with the source code.
+ *
+ */
+package com.slinkytoybox.gcloud.managementsqlplugin;
+
+import com.slinkytoybox.gcloud.platformconnectorplugin.ContainerInterface;
+import com.slinkytoybox.gcloud.platformconnectorplugin.request.ReadRequest;
+import com.slinkytoybox.gcloud.platformconnectorplugin.response.PluginResponse;
+import com.slinkytoybox.gcloud.platformconnectorplugin.response.ReadResponse;
+import com.zaxxer.hikari.HikariDataSource;
+import java.io.PrintWriter;
+import java.lang.reflect.Array;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.Driver;
+import java.sql.DriverManager;
+import java.sql.DriverPropertyInfo;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.Statement;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+import javax.sql.DataSource;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the time and allocation of a lookup through {@link DatabaseQuery#performQuery}, for a cached record and for
+ * a lookup that goes to the database. The same lookups are also measured as read requests through
+ * {@link ManagementSQLPlugin#getResponseFromRequest}, which adds request dispatch, parameter parsing and admission
+ * control. The database is a fake driver that returns one row straight away, so the results are the plugin's own
+ * overhead (including the connection pool) rather than any database time.
+ *
+ * Run with the benchmark profile, which adds the GC profiler to report bytes per operation:
+ * mvn -P benchmark test-compile exec:exec
+ *
+ * @author Michael Junek (michael@juneks.com.au)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LookupPathBenchmark {
+
+    private static final List<String> COLUMNS = List.of("ID", "NAME", "STATUS");
+
+    private HikariDataSource pool;
+    private ExecutorService lookupExecutor;
+    private DatabaseQuery cachedQuery;
+    private DatabaseQuery uncachedQuery;
+
+    private FakeDriver driver;
+    private ManagementSQLPlugin plugin;
+    private ReadRequest cachedRequest;
+    private ReadRequest databaseRequest;
+
+    @Setup
+    public void setUp() {
+        pool = new HikariDataSource();
+        pool.setDataSource(new FakeDataSource());
+        pool.setPoolName("SQL-Plugin-Benchmark");
+        pool.setMinimumIdle(2);
+        pool.setMaximumPoolSize(2);
+        lookupExecutor = Executors.newCachedThreadPool();
+
+        Properties config = configuration();
+        config.setProperty("query.account.cache.ttl-ms", "3600000");
+        cachedQuery = new DatabaseQuery(config, "account", pool, null, lookupExecutor, new HedgeBudget(10, 10), new SlowQueryLog(0));
+        uncachedQuery = new DatabaseQuery(configuration(), "account", pool, null, lookupExecutor, new HedgeBudget(10, 10), new SlowQueryLog(0));
+        // Loads the record into the cache, and resolves the column layout of both queries
+        cachedQuery.performQuery(new ReadResponse(), 42L);
+        uncachedQuery.performQuery(new ReadResponse(), 42L);
+
+        setUpPlugin();
+    }
+
+    // Starts the plugin as the container would, against the fake driver, and waits until it answers lookups
+    private void setUpPlugin() {
+        driver = new FakeDriver();
+        try {
+            DriverManager.registerDriver(driver);
+        }
+        catch (SQLException ex) {
+            throw new IllegalStateException("Could not register fake driver", ex);
+        }
+        Properties config = new Properties();
+        config.setProperty("cloud.database.url", FakeDriver.URL);
+        config.setProperty("cloud.database.username", "benchmark");
+        config.setProperty("cloud.database.password", "benchmark");
+        config.setProperty("cloud.database.pool.min-size", "2");
+        config.setProperty("cloud.logging.request-summary-interval-ms", "0");
+        for (String queryId : List.of("cached", "direct")) {
+            configuration().forEach((key, value) -> config.setProperty(((String) key).replace("query.account.", "query." + queryId + "."), (String) value));
+        }
+        config.setProperty("query.cached.cache.ttl-ms", "3600000");
+
+        plugin = new ManagementSQLPlugin("benchmark", "Lookup path benchmark", config);
+        plugin.setContainerInterface((ContainerInterface) Proxy.newProxyInstance(ContainerInterface.class.getClassLoader(), new Class<?>[]{ContainerInterface.class},
+                (proxy, method, args) -> method.getName().equals("decrypt") ? args[0] : null));
+        cachedRequest = readRequest("cached", "42");
+        databaseRequest = readRequest("direct", "42");
+
+        // The database is started in the background, and the first request loads the cached record
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+        while (plugin.getResponseFromRequest(cachedRequest).getStatus() != PluginResponse.ResponseStatus.SUCCESS) {
+            if (System.nanoTime() > deadline) {
+                throw new IllegalStateException("Plugin did not start answering lookups within 30 seconds");
+            }
+            Thread.onSpinWait();
+        }
+        plugin.getResponseFromRequest(databaseRequest);
+    }
+
+    // Requests are built by the container, so this one just answers the getters the plugin reads
+    private static ReadRequest readRequest(String queryId, String objectId) {
+        Map<String, String[]> parameters = Map.of("queryId", new String[]{queryId});
+        return new ReadRequest() {
+            @Override
+            public String getRequestId() {
+                return "benchmark";
+            }
+
+            @Override
+            public Map<String, String[]> getRequestParameters() {
+                return parameters;
+            }
+
+            @Override
+            public String getObjectId() {
+                return objectId;
+            }
+        };
+    }
+
+    @TearDown
+    public void tearDown() {
+        pool.close();
+        lookupExecutor.shutdownNow();
+        // The plugin's own pools and threads are daemons that go with the forked JVM
+        try {
+            DriverManager.deregisterDriver(driver);
+        }
+        catch (SQLException ex) {
+            throw new IllegalStateException("Could not deregister fake driver", ex);
+        }
+    }
+
+    @Benchmark
+    public ReadResponse cachedLookup() {
+        return cachedQuery.performQuery(new ReadResponse(), 42L);
+    }
+
+    @Benchmark
+    public ReadResponse cachedProjectedLookup() {
+        return cachedQuery.performQuery(new ReadResponse(), 42L, "NAME");
+    }
+
+    @Benchmark
+    public ReadResponse databaseLookup() {
+        return uncachedQuery.performQuery(new ReadResponse(), 42L);
+    }
+
+    @Benchmark
+    public PluginResponse cachedRequest() {
+        return plugin.getResponseFromRequest(cachedRequest);
+    }
+
+    @Benchmark
+    public PluginResponse databaseRequest() {
+        return plugin.getResponseFromRequest(databaseRequest);
+    }
+
+    private static Properties configuration() {
+        Properties config = new Properties();
+        config.setProperty("query.account.sql", "SELECT ID, NAME, STATUS FROM ACCOUNT WHERE ID=?");
+        config.setProperty("query.account.search-data-type", "NUMBER");
+        config.setProperty("query.account.column.ID.enabled", "true");
+        config.setProperty("query.account.column.ID.data-type", "NUMBER");
+        config.setProperty("query.account.column.NAME.enabled", "true");
+        config.setProperty("query.account.column.STATUS.enabled", "true");
+        return config;
+    }
+
+    // Registered with DriverManager so that the plugin's own pools, which are created from a JDBC URL, use the fake data
+    // source's connections
+    private static final class FakeDriver implements Driver {
+
+        private static final String URL = "jdbc:fake:benchmark";
+
+        @Override
+        public Connection connect(String url, Properties info) {
+            return acceptsURL(url) ? FakeDataSource.connection() : null;
+        }
+
+        @Override
+        public boolean acceptsURL(String url) {
+            return URL.equals(url);
+        }
+
+        @Override
+        public DriverPropertyInfo[] getPropertyInfo(String url, Properties info) {
+            return new DriverPropertyInfo[0];
+        }
+
+        @Override
+        public int getMajorVersion() {
+            return 1;
+        }
+
+        @Override
+        public int getMinorVersion() {
+            return 0;
+        }
+
+        @Override
+        public boolean jdbcCompliant() {
+            return false;
+        }
+
+        @Override
+        public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+            throw new SQLFeatureNotSupportedException();
+        }
+    }
+
+    // A driver with just enough behaviour for the pool and a single row lookup. Anything not handled returns the
+    // default value for its type
+    private static final class FakeDataSource implements DataSource {
+
+        @Override
+        public Connection getConnection() {
+            return connection();
+        }
+
+        @Override
+        public Connection getConnection(String username, String password) {
+            return connection();
+        }
+
+        private static Connection connection() {
+            Connection[] conn = new Connection[1];
+            conn[0] = fake(Connection.class, (name, args) -> switch (name) {
+                case "isValid" ->
+                    true;
+                case "unwrap" ->
+                    conn[0];
+                case "prepareStatement" ->
+                    statement();
+                case "createStatement" ->
+                    fake(Statement.class, (statementMethod, statementArgs) -> null);
+                default ->
+                    null;
+            });
+            return conn[0];
+        }
+
+        private static PreparedStatement statement() {
+            return fake(PreparedStatement.class, (name, args) -> name.equals("executeQuery") ? resultSet() : null);
+        }
+
+        private static ResultSet resultSet() {
+            int[] row = new int[1];
+            return fake(ResultSet.class, (name, args) -> switch (name) {
+                case "next" ->
+                    ++row[0] == 1;
+                case "findColumn" ->
+                    COLUMNS.indexOf((String) args[0]) + 1;
+                case "getLong" ->
+                    42L;
+                case "getString" ->
+                    "Value " + args[0];
+                default ->
+                    null;
+            });
+        }
+
+        private interface Handler {
+
+            Object invoke(String name, Object[] args);
+        }
+
+        private static <T> T fake(Class<T> type, Handler handler) {
+            return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type}, (proxy, method, args) -> {
+                Object result = method.getName().equals("hashCode") ? System.identityHashCode(proxy) : method.getName().equals("equals") ? proxy == args[0] : handler.invoke(method.getName(), args);
+                if (result == null && method.getReturnType().isPrimitive() && method.getReturnType() != void.class) {
+                    return Array.get(Array.newInstance(method.getReturnType(), 1), 0);
+                }
+                return result;
+            }));
+        }
+
+        @Override
+        public PrintWriter getLogWriter() {
+            return null;
+        }
+
+        @Override
+        public void setLogWriter(PrintWriter out) {
+        }
+
+        @Override
+        public void setLoginTimeout(int seconds) {
+        }
+
+        @Override
+        public int getLoginTimeout() {
+            return 0;
+        }
+
+        @Override
+        public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+            throw new SQLFeatureNotSupportedException();
+        }
+
+        @Override
+        public <T> T unwrap(Class<T> iface) throws SQLException {
+            throw new SQLException("Not a wrapper");
+        }
+
+        @Override
+        public boolean isWrapperFor(Class<?> iface) {
+            return false;
+        }
+
+    }
+
+}
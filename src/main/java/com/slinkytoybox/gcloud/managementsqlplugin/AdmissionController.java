@@ -0,0 +1,249 @@
+/*
+ *   management-sql-plugin - AdmissionController.java
+ *
+ *   Copyright (c) 2022-2023, Slinky Software
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as
+ *   published by the Free Software Foundation, either version 3 of the
+ *   License, or (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   A copy of the GNU Affero General Public License is located in the 
+ *   AGPL-3.0.md supplied with the source code.
+ *
+ */
+package com.slinkytoybox.gcloud.managementsqlplugin;
+
+import java.io.Serializable;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import lombok.ToString;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Decides whether a lookup for a given query may proceed, so that excess load is rejected straight away rather than
+ * queueing on the connection pool until everything times out.
+ *
+ * Each query may have a concurrency limit (optionally adapted to observed latency) and a token bucket rate limit. All
+ * queries also share a plugin-wide concurrency limit, of which lower priority queries may only use a portion.
+ *
+ * @author Michael Junek (michael@juneks.com.au)
+ */
+@Slf4j
+@ToString(exclude = {"sharedCapacity"})
+class AdmissionController {
+
+    private final String queryId;
+    private final Priority priority;
+    private final SharedCapacity sharedCapacity;
+
+    // Concurrency limit. Zero means unlimited
+    private final int maxConcurrent;
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    // Adaptive (AIMD) concurrency limit, moved between minConcurrent and maxConcurrent based on latency
+    private final boolean adaptive;
+    private final int minConcurrent;
+    private final long latencyTargetNanos;
+    private double adaptiveLimit;
+    // Lookups measured since the limit was last decreased. The limit is decreased at most once per window, which is the
+    // limit before the last decrease, so a spike of slow lookups that were all in flight together counts as one sign of
+    // congestion
+    private long samplesSinceDecrease;
+    private long decreaseWindow;
+
+    // Token bucket rate limit. Zero means unlimited
+    private final double ratePerSecond;
+    private final double burst;
+    private double tokens;
+    private long lastRefillNanos;
+
+    private final AtomicLong admittedCount = new AtomicLong();
+    private final AtomicLong shedCount = new AtomicLong();
+
+    AdmissionController(Properties configuration, String queryId, SharedCapacity sharedCapacity) {
+        final String logPrefix = "ctor() - ";
+        log.trace("{}Entering Method", logPrefix);
+        this.queryId = queryId;
+        this.sharedCapacity = sharedCapacity;
+
+        String priorityStr = configuration.getProperty("query." + queryId + ".priority", "NORMAL");
+        Priority tempPriority;
+        try {
+            tempPriority = Priority.valueOf(priorityStr.toUpperCase());
+        }
+        catch (IllegalArgumentException ex) {
+            log.warn("{}Priority {} is not one of HIGH/NORMAL/LOW. Using NORMAL", logPrefix, priorityStr);
+            tempPriority = Priority.NORMAL;
+        }
+        priority = tempPriority;
+
+        maxConcurrent = Integer.valueOf(configuration.getProperty("query." + queryId + ".admission.max-concurrent", "0"));
+        adaptive = maxConcurrent > 0 && configuration.getProperty("query." + queryId + ".admission.adaptive", "false").equalsIgnoreCase("true");
+        minConcurrent = Math.max(1, Integer.valueOf(configuration.getProperty("query." + queryId + ".admission.min-concurrent", "1")));
+        latencyTargetNanos = TimeUnit.MILLISECONDS.toNanos(Long.valueOf(configuration.getProperty("query." + queryId + ".admission.latency-target-ms", "100")));
+        adaptiveLimit = maxConcurrent;
+
+        ratePerSecond = Double.valueOf(configuration.getProperty("query." + queryId + ".admission.rate-per-second", "0"));
+        burst = Math.max(1, Double.valueOf(configuration.getProperty("query." + queryId + ".admission.burst", String.valueOf(ratePerSecond))));
+        tokens = burst;
+        lastRefillNanos = System.nanoTime();
+
+        log.debug("{}Admission control for {}: {}", logPrefix, queryId, this);
+    }
+
+    /**
+     * Attempts to admit a lookup. If this returns null the caller must call {@link #release()} once the lookup is
+     * complete.
+     *
+     * @return null if the lookup was admitted, otherwise the reason it was rejected
+     */
+    String tryAdmit() {
+        if (maxConcurrent > 0) {
+            int limit = adaptive ? getAdaptiveLimit() : maxConcurrent;
+            if (inFlight.incrementAndGet() > limit) {
+                inFlight.decrementAndGet();
+                shedCount.incrementAndGet();
+                return "Concurrency limit reached for query";
+            }
+        }
+        else {
+            inFlight.incrementAndGet();
+        }
+
+        if (!sharedCapacity.tryAcquire(priority)) {
+            inFlight.decrementAndGet();
+            shedCount.incrementAndGet();
+            return "Database capacity is reserved for higher priority queries";
+        }
+
+        if (ratePerSecond > 0 && !tryTakeToken()) {
+            sharedCapacity.release();
+            inFlight.decrementAndGet();
+            shedCount.incrementAndGet();
+            return "Rate limit exceeded for query";
+        }
+        admittedCount.incrementAndGet();
+        return null;
+    }
+
+    void release() {
+        sharedCapacity.release();
+        inFlight.decrementAndGet();
+    }
+
+    /**
+     * Feeds the duration of a database lookup for this query to the adaptive limit. Only database lookups are reported
+     * here, as a request answered from the cache says nothing about how loaded the database is.
+     *
+     * @param durationNanos
+     */
+    void recordLookupLatency(long durationNanos) {
+        if (adaptive) {
+            adjustLimit(durationNanos);
+        }
+    }
+
+    private synchronized int getAdaptiveLimit() {
+        return (int) adaptiveLimit;
+    }
+
+    // Additive increase while latency is under target, multiplicative decrease when it is exceeded. Both move the limit
+    // by about 10% per window, rather than the decrease compounding across every slow lookup in a spike
+    private synchronized void adjustLimit(long durationNanos) {
+        samplesSinceDecrease++;
+        if (durationNanos > latencyTargetNanos) {
+            if (samplesSinceDecrease >= decreaseWindow) {
+                decreaseWindow = (long) Math.ceil(adaptiveLimit);
+                adaptiveLimit = Math.max(minConcurrent, adaptiveLimit * 0.9);
+                samplesSinceDecrease = 0;
+            }
+        }
+        else {
+            adaptiveLimit = Math.min(maxConcurrent, adaptiveLimit + 1.0 / adaptiveLimit);
+        }
+    }
+
+    private synchronized boolean tryTakeToken() {
+        long now = System.nanoTime();
+        tokens = Math.min(burst, tokens + (now - lastRefillNanos) * ratePerSecond / TimeUnit.SECONDS.toNanos(1));
+        lastRefillNanos = now;
+        if (tokens >= 1.0) {
+            tokens -= 1.0;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Adds the admission counters for this query to the supplied metric map
+     *
+     * @param metricMap
+     */
+    void collectMetrics(Map<String, Serializable> metricMap) {
+        metricMap.put("query." + queryId + ".admitted", admittedCount.get());
+        metricMap.put("query." + queryId + ".shed", shedCount.get());
+        if (adaptive) {
+            metricMap.put("query." + queryId + ".concurrency-limit", getAdaptiveLimit());
+        }
+    }
+
+    enum Priority {
+        HIGH,
+        NORMAL,
+        LOW
+    }
+
+    /**
+     * Plugin-wide concurrency limit shared by every query. HIGH priority queries may use all of it, NORMAL and LOW
+     * priority queries are shed once their percentage of it is in use.
+     */
+    @ToString
+    static class SharedCapacity {
+
+        // Zero means unlimited
+        private final int maxConcurrent;
+        private final int normalLimit;
+        private final int lowLimit;
+        private final AtomicInteger inFlight = new AtomicInteger();
+
+        SharedCapacity(int maxConcurrent, int normalPercent, int lowPercent) {
+            this.maxConcurrent = maxConcurrent;
+            this.normalLimit = Math.max(1, maxConcurrent * normalPercent / 100);
+            this.lowLimit = Math.max(1, maxConcurrent * lowPercent / 100);
+        }
+
+        boolean tryAcquire(Priority priority) {
+            int current = inFlight.incrementAndGet();
+            if (maxConcurrent <= 0) {
+                return true;
+            }
+            int limit = switch (priority) {
+                case HIGH ->
+                    maxConcurrent;
+                case NORMAL ->
+                    normalLimit;
+                case LOW ->
+                    lowLimit;
+            };
+            if (current > limit) {
+                inFlight.decrementAndGet();
+                return false;
+            }
+            return true;
+        }
+
+        void release() {
+            inFlight.decrementAndGet();
+        }
+    }
+
+}
@@ -0,0 +1,135 @@
+/*
+ *   management-sql-plugin - CompactDetailsMap.java
+ *
+ *   Copyright (c) 2022-2023, Slinky Software
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as
+ *   published by the Free Software Foundation, either version 3 of the
+ *   License, or (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   A copy of the GNU Affero General Public License is located in the 
+ *   AGPL-3.0.md supplied with the source code.
+ *
+ */
+package com.slinkytoybox.gcloud.managementsqlplugin;
+
+import java.io.Serializable;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Immutable map used for the object details of a lookup. The field names are held once per query in a {@link Schema}
+ * and each response only stores a flat array of values, indexed by the field's position in the schema. This avoids a
+ * hash table and an entry object per field for every response, which matters most for results held in the cache.
+ *
+ * @author Michael Junek (michael@juneks.com.au)
+ */
+final class CompactDetailsMap extends AbstractMap<String, Serializable> implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final Schema schema;
+    private final Serializable[] values;
+
+    CompactDetailsMap(Schema schema, Serializable[] values) {
+        if (values.length != schema.keys.length) {
+            throw new IllegalArgumentException("Value count does not match the schema");
+        }
+        this.schema = schema;
+        this.values = values;
+    }
+
+    @Override
+    public int size() {
+        return values.length;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return schema.indexOf(key) >= 0;
+    }
+
+    @Override
+    public Serializable get(Object key) {
+        int index = schema.indexOf(key);
+        return index < 0 ? null : values[index];
+    }
+
+    @Override
+    public Set<Map.Entry<String, Serializable>> entrySet() {
+        return new AbstractSet<>() {
+            @Override
+            public Iterator<Map.Entry<String, Serializable>> iterator() {
+                return new Iterator<>() {
+                    private int next = 0;
+
+                    @Override
+                    public boolean hasNext() {
+                        return next < values.length;
+                    }
+
+                    @Override
+                    public Map.Entry<String, Serializable> next() {
+                        if (next >= values.length) {
+                            throw new NoSuchElementException();
+                        }
+                        Map.Entry<String, Serializable> entry = new AbstractMap.SimpleImmutableEntry<>(schema.keys[next], values[next]);
+                        next++;
+                        return entry;
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return values.length;
+            }
+        };
+    }
+
+    /**
+     * The ordered set of field names shared by every response of one query.
+     */
+    static final class Schema implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private final String[] keys;
+        private final Map<String, Integer> indexes = new HashMap<>();
+
+        Schema(List<String> fieldNames) {
+            keys = fieldNames.toArray(String[]::new);
+            for (int i = 0; i < keys.length; i++) {
+                if (indexes.putIfAbsent(keys[i], i) != null) {
+                    throw new IllegalArgumentException("Duplicate field name " + keys[i]);
+                }
+            }
+        }
+
+        int size() {
+            return keys.length;
+        }
+
+        String keyAt(int index) {
+            return keys[index];
+        }
+
+        int indexOf(Object key) {
+            Integer index = indexes.get(key);
+            return index == null ? -1 : index;
+        }
+    }
+
+}
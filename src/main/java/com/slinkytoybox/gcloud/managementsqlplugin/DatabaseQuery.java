@@ -22,17 +22,38 @@ package com.slinkytoybox.gcloud.managementsqlplugin;
 import com.slinkytoybox.gcloud.platformconnectorplugin.response.PluginResponse;
 import com.slinkytoybox.gcloud.platformconnectorplugin.response.ReadResponse;
 import com.zaxxer.hikari.HikariDataSource;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
 import java.io.Serializable;
+import java.lang.ref.WeakReference;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Timestamp;
 import java.time.LocalDateTime;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongConsumer;
 import java.util.regex.Pattern;
 import lombok.ToString;
 import lombok.extern.slf4j.Slf4j;
@@ -42,25 +63,107 @@ import lombok.extern.slf4j.Slf4j;
  * @author Michael Junek (michael@juneks.com.au)
  */
 @Slf4j
-@ToString(exclude = {"poolSource"})
+@ToString(exclude = {"poolSource", "replicaSource", "lookupExecutor", "hedgeBudget", "slowQueryLog", "latencyTracker", "cache", "fullVariant", "projectionMap", "lookupLatencyListener"})
 public class DatabaseQuery {
 
+    // Buffer size used when streaming columns that have a maximum length
+    private static final int STREAM_CHUNK_SIZE = 8192;
+
+    // Delay used for hedging until enough lookups have been seen to estimate the p95
+    private static final long DEFAULT_HEDGE_DELAY_MS = 100;
+
     private final HikariDataSource poolSource;
 
+    // Optional read replica. Hedged lookups are sent here in preference to the primary pool
+    private final HikariDataSource replicaSource;
+
+    private final ExecutorService lookupExecutor;
+
+    private final HedgeBudget hedgeBudget;
+
+    private final SlowQueryLog slowQueryLog;
+
     private final String queryId;
 
+    // Log prefix for the lookup path, built once so that no string is concatenated per request
+    private final String lookupLogPrefix;
+
     // SQL string for the specific select. Should only have a single ? for the primary identifier in the where clause
     private final String sqlString;
 
     // The database type of the searchable field.
     private final ColumnDataType searchDataType;
 
+    // Applied in order to the incoming lookup ID before it is parsed by searchDataType
+    private final KeyNormaliser[] keyNormalisers;
+    // Country code used by the E164 normaliser for national numbers. Null if not configured
+    private final String keyCountryCode;
+    // Bind TEXT lookup IDs as NVARCHAR rather than VARCHAR
+    private final boolean keyNational;
+
     private final Map<String, DatabaseColumn> columns = new TreeMap<>();
 
-    public DatabaseQuery(Properties configuration, String queryId, HikariDataSource poolSource) {
+    // The configured SQL returning every column
+    private final QueryVariant fullVariant;
+
+    // Field projections requested so far (and any configured ones), keyed by their sorted, comma separated field names
+    private final Map<String, Projection> projectionMap = new ConcurrentHashMap<>();
+    // Generate SQL selecting only the projected columns. When false, projections just filter the full result
+    private final boolean projectionSqlEnabled;
+    private final int projectionMaxEntries;
+    private final AtomicLong projectedLookupCount = new AtomicLong();
+
+    // Hedging configuration. A negative fixed delay means the delay tracks the observed p95
+    private final boolean hedgeEnabled;
+    private final long hedgeDelayMs;
+    private final long hedgeMinDelayMs;
+
+    private final LatencyTracker latencyTracker = new LatencyTracker(95);
+    private final AtomicLong lookupCount = new AtomicLong();
+    private final AtomicLong hedgeCount = new AtomicLong();
+    private final AtomicLong hedgeWinCount = new AtomicLong();
+    // Times a lookup, hedge or refresh could not be given a lookup thread because they were all busy
+    private final AtomicLong lookupThreadsBusyCount = new AtomicLong();
+
+    // Lookup cache. Null when the query is not cached
+    private final LookupCache cache;
+    private final long cacheTtlNanos;
+    private final long cacheStaleWhileRevalidateNanos;
+    private final long cacheMaxStaleNanos;
+    // How long to wait for the database when a result within cacheMaxStaleNanos could be served instead. Zero waits for
+    // the lookup however long it takes
+    private final long cacheStaleDeadlineMs;
+    private final String staleField;
+
+    // Told how long each database lookup took, so that requests answered from the cache are never mistaken for database
+    // latency
+    private volatile LongConsumer lookupLatencyListener = durationNanos -> {
+    };
+
+    private final AtomicLong cacheHitCount = new AtomicLong();
+    private final AtomicLong cacheMissCount = new AtomicLong();
+    private final AtomicLong staleServeCount = new AtomicLong();
+    private final AtomicLong staleOnErrorCount = new AtomicLong();
+    private final AtomicLong staleOnDeadlineCount = new AtomicLong();
+    private final AtomicLong sharedLookupCount = new AtomicLong();
+    private final AtomicLong invalidationCount = new AtomicLong();
+
+    // Canary lookup ID used to prepare the statement on each new pooled connection. Null if not configured
+    private final Object warmupId;
+    // Query timeout for warm-up statements, which run before the pool's own checks and could otherwise hang a new connection
+    private final int warmupTimeoutSeconds;
+
+    // Executions on a connection the statement was already prepared on, and first executions on a connection
+    private final AtomicLong statementReuseCount = new AtomicLong();
+    private final AtomicLong statementFirstUseCount = new AtomicLong();
+
+    public DatabaseQuery(Properties configuration, String queryId, HikariDataSource poolSource, HikariDataSource replicaSource, ExecutorService lookupExecutor, HedgeBudget hedgeBudget, SlowQueryLog slowQueryLog) {
         final String logPrefix = "ctor() - ";
         log.trace("{}Entering Method", logPrefix);
         log.info("{}Initialising query {}", logPrefix, queryId);
+        // Assigned first, as the configuration helpers below read them
+        this.queryId = queryId;
+        this.lookupLogPrefix = "performQuery() - {" + queryId + "} - ";
         if (!configuration.containsKey("query." + queryId + ".sql")) {
             log.error("{}SQL Query not defined", logPrefix);
             throw new IllegalArgumentException("SQL query no defined");
@@ -82,6 +185,10 @@ public class DatabaseQuery {
                 throw new IllegalArgumentException("Search Data Type is not valid");
 
             }
+            if (searchDataType == ColumnDataType.BINARY) {
+                log.error("{}Search data type cannot be BINARY", logPrefix);
+                throw new IllegalArgumentException("Search Data Type is not valid");
+            }
         }
         log.debug("{}SQL String: {}", logPrefix, sqlString);
         log.debug("{}Search data type {}", logPrefix, searchDataType);
@@ -100,19 +207,32 @@ public class DatabaseQuery {
                 }
                 else {
                     if (configuration.containsKey("query." + queryId + ".column." + columnName + ".enabled") && configuration.getProperty("query." + queryId + ".column." + columnName + ".enabled").equalsIgnoreCase("true")) {
-                        String type = configuration.getProperty("query." + queryId + ".column." + columnName + ".data-type", "string");
+                        String type = configuration.getProperty("query." + queryId + ".column." + columnName + ".data-type", "TEXT");
                         ColumnDataType dataType = null;
                         try {
                             dataType = ColumnDataType.valueOf(type.toUpperCase());
                         }
                         catch (IllegalArgumentException ex) {
-                            log.warn("{}Column data type {} is not one of TEXT/NUMBER/TIMESTAMP. Ignoring", logPrefix, type.toUpperCase());
+                            log.warn("{}Column data type {} is not one of TEXT/NUMBER/TIMESTAMP/BINARY. Ignoring", logPrefix, type.toUpperCase());
                         }
                         if (dataType != null) {
                             col = new DatabaseColumn();
                             col.name = columnName;
                             col.dataType = dataType;
                             col.jsonField = configuration.getProperty("query." + queryId + ".column." + columnName + ".json-field", columnName);
+                            col.typed = configuration.getProperty("query." + queryId + ".column." + columnName + ".typed", "false").equalsIgnoreCase("true");
+                            long maxLength = Long.valueOf(configuration.getProperty("query." + queryId + ".column." + columnName + ".max-length", "0"));
+                            // One character past maxLength is read to detect an oversize value, so maxLength + 1 must still be an int
+                            if (maxLength < 0 || maxLength >= Integer.MAX_VALUE) {
+                                log.error("{}Column {} max length {} is not between 0 and {}", logPrefix, columnName, maxLength, Integer.MAX_VALUE - 1);
+                                throw new IllegalArgumentException("Column max length is not valid");
+                            }
+                            col.maxLength = (int) maxLength;
+                            col.omitOversize = configuration.getProperty("query." + queryId + ".column." + columnName + ".oversize-policy", "TRUNCATE").equalsIgnoreCase("OMIT");
+                            if (configuration.getProperty("query." + queryId + ".column." + columnName + ".intern", "false").equalsIgnoreCase("true")) {
+                                col.internedValues = new ConcurrentHashMap<>();
+                                col.internMaxEntries = Integer.valueOf(configuration.getProperty("query." + queryId + ".column." + columnName + ".intern-max-entries", "1024"));
+                            }
                             columns.put(columnName, col);
                             log.trace("{}Created new column {}", logPrefix, col);
                         }
@@ -130,114 +250,1116 @@ public class DatabaseQuery {
                 }
             }
         }
+
+        log.debug("{}Compiling column enumerations", logPrefix);
+        for (DatabaseColumn col : columns.values()) {
+            col.compileEnumeration(logPrefix);
+        }
+
+        hedgeEnabled = configuration.getProperty("query." + queryId + ".hedge.enabled", "false").equalsIgnoreCase("true");
+        hedgeDelayMs = Long.valueOf(configuration.getProperty("query." + queryId + ".hedge.delay-ms", "-1"));
+        hedgeMinDelayMs = Long.valueOf(configuration.getProperty("query." + queryId + ".hedge.min-delay-ms", "5"));
+        if (hedgeEnabled) {
+            log.debug("{}Hedging enabled. Delay: {}, Minimum delay: {}, Replica: {}", logPrefix, hedgeDelayMs < 0 ? "p95" : hedgeDelayMs + "ms", hedgeMinDelayMs, replicaSource != null);
+        }
+
+        long cacheTtlMs = Long.valueOf(configuration.getProperty("query." + queryId + ".cache.ttl-ms", "0"));
+        cacheTtlNanos = TimeUnit.MILLISECONDS.toNanos(cacheTtlMs);
+        cacheStaleWhileRevalidateNanos = TimeUnit.MILLISECONDS.toNanos(Long.valueOf(configuration.getProperty("query." + queryId + ".cache.stale-while-revalidate-ms", "0")));
+        cacheMaxStaleNanos = TimeUnit.MILLISECONDS.toNanos(Long.valueOf(configuration.getProperty("query." + queryId + ".cache.max-stale-ms", "0")));
+        cacheStaleDeadlineMs = Long.valueOf(configuration.getProperty("query." + queryId + ".cache.stale-deadline-ms", "1000"));
+        staleField = configuration.getProperty("cloud.database.cache.stale-field", "_stale");
+        if (cacheTtlMs > 0) {
+            cache = new LookupCache(Integer.valueOf(configuration.getProperty("query." + queryId + ".cache.max-entries", "10000")));
+            log.debug("{}Caching enabled. TTL: {}ms, Cache: {}", logPrefix, cacheTtlMs, cache);
+        }
+        else {
+            cache = null;
+        }
+
+        String normaliserList = configuration.getProperty("query." + queryId + ".key.normalisers", "");
+        List<KeyNormaliser> tempNormalisers = new ArrayList<>();
+        for (String normaliserName : normaliserList.split(",")) {
+            if (normaliserName.isBlank()) {
+                continue;
+            }
+            try {
+                tempNormalisers.add(KeyNormaliser.fromName(normaliserName));
+            }
+            catch (IllegalArgumentException ex) {
+                log.error("{}Key normaliser {} is not one of trim/digits-only/e164/case-fold", logPrefix, normaliserName);
+                throw new IllegalArgumentException("Key normaliser is not valid");
+            }
+        }
+        keyNormalisers = tempNormalisers.toArray(KeyNormaliser[]::new);
+        keyCountryCode = configuration.getProperty("query." + queryId + ".key.default-country-code");
+        if (keyCountryCode != null && !keyCountryCode.matches("^[0-9]{1,3}$")) {
+            log.error("{}Default country code {} is not 1 to 3 digits (without a leading +)", logPrefix, keyCountryCode);
+            throw new IllegalArgumentException("Default country code is not valid");
+        }
+        String keySqlType = configuration.getProperty("query." + queryId + ".key.sql-type", "NVARCHAR");
+        if (!keySqlType.equalsIgnoreCase("VARCHAR") && !keySqlType.equalsIgnoreCase("NVARCHAR")) {
+            log.error("{}Key SQL type {} is not one of VARCHAR/NVARCHAR", logPrefix, keySqlType);
+            throw new IllegalArgumentException("Key SQL type is not valid");
+        }
+        keyNational = keySqlType.equalsIgnoreCase("NVARCHAR");
+        log.debug("{}Key normalisers: {}, SQL type: {}", logPrefix, tempNormalisers, keySqlType);
+
+        String warmupIdStr = configuration.getProperty("query." + queryId + ".warmup-id");
+        Object tempWarmupId = null;
+        if (warmupIdStr != null) {
+            try {
+                tempWarmupId = parseKey(warmupIdStr);
+                log.debug("{}Warm-up ID: {}", logPrefix, tempWarmupId);
+            }
+            catch (IllegalArgumentException ex) {
+                log.warn("{}Warm-up ID {} is not a valid {}. Warm-up disabled", logPrefix, warmupIdStr, searchDataType);
+            }
+        }
+        warmupId = tempWarmupId;
+        warmupTimeoutSeconds = Integer.valueOf(configuration.getProperty("query." + queryId + ".warmup-timeout-seconds", "5"));
+        if (warmupTimeoutSeconds < 0) {
+            throw new IllegalArgumentException("Warm-up timeout for query " + queryId + " must not be negative");
+        }
+
         this.poolSource = poolSource;
-        this.queryId = queryId;
+        this.replicaSource = replicaSource;
+        this.lookupExecutor = lookupExecutor;
+        this.hedgeBudget = hedgeBudget;
+        this.slowQueryLog = slowQueryLog;
+        fullVariant = new QueryVariant(sqlString, new ArrayList<>(columns.values()));
+
+        projectionSqlEnabled = configuration.getProperty("query." + queryId + ".projection.generate-sql", "false").equalsIgnoreCase("true");
+        projectionMaxEntries = Integer.valueOf(configuration.getProperty("query." + queryId + ".projection.max-entries", "64"));
+        configureProjections(configuration, logPrefix);
         log.info("{}Finished setting up QueryId: {}", logPrefix, queryId);
 
     }
 
+    /**
+     * Normalises and parses an incoming lookup ID into the key for this query: a String, Long or LocalDateTime depending
+     * on the search data type. The string form of the key is used as the cache key, so every format of the same ID
+     * shares one cache entry.
+     *
+     * @param objectId the lookup ID as received
+     * @return the typed key
+     * @throws IllegalArgumentException if the ID cannot be normalised or is not valid for the search data type
+     */
+    public Object parseKey(String objectId) {
+        String value = objectId;
+        for (KeyNormaliser normaliser : keyNormalisers) {
+            value = normaliser.apply(value, keyCountryCode);
+        }
+        if (value.isEmpty()) {
+            throw new IllegalArgumentException("Lookup ID is empty");
+        }
+        try {
+            return switch (searchDataType) {
+                case NUMBER ->
+                    Long.valueOf(value);
+                case TIMESTAMP ->
+                    LocalDateTime.parse(value);
+                default ->
+                    value;
+            };
+        }
+        catch (NumberFormatException | DateTimeParseException ex) {
+            throw new IllegalArgumentException("Lookup ID is not a valid " + searchDataType);
+        }
+    }
+
+    // Reads the configured projections, query.<ID>.projection.<NAME>.fields with an optional .sql
+    private void configureProjections(Properties configuration, String logPrefix) {
+        for (String key : configuration.stringPropertyNames()) {
+            if (!key.matches("^query\\." + Pattern.quote(queryId) + "\\.projection\\.[^.]+\\.fields$")) {
+                continue;
+            }
+            String projectionName = key.split("\\.")[3];
+            String projectionSql = configuration.getProperty("query." + queryId + ".projection." + projectionName + ".sql");
+            try {
+                Projection projection = buildProjection(configuration.getProperty(key), projectionSql, true);
+                if (projection == null) {
+                    log.warn("{}Projection {} includes every field. Ignoring", logPrefix, projectionName);
+                    continue;
+                }
+                projectionMap.put(projection.key, projection);
+                log.debug("{}Configured projection {}: {}", logPrefix, projectionName, projection);
+            }
+            catch (IllegalArgumentException ex) {
+                log.warn("{}Projection {} is not valid, ignoring: {}", logPrefix, projectionName, ex.getMessage());
+            }
+        }
+    }
+
+    // Returns the projection for the requested fields, or null if every field was requested
+    Projection getProjection(String fields, String logPrefix) {
+        String key = canonicalFields(fields);
+        Projection projection = projectionMap.get(key);
+        if (projection != null) {
+            return projection;
+        }
+        projection = buildProjection(fields, null, false);
+        if (projection == null) {
+            return null;
+        }
+        if (projectionMap.size() < projectionMaxEntries) {
+            Projection existing = projectionMap.putIfAbsent(projection.key, projection);
+            return existing != null ? existing : projection;
+        }
+        log.debug("{}Projection limit reached, not keeping projection {}", logPrefix, projection.key);
+        return projection;
+    }
+
+    private Projection buildProjection(String fields, String projectionSql, boolean configured) {
+        String key = canonicalFields(fields);
+        if (key.isEmpty()) {
+            throw new IllegalArgumentException("No fields were requested");
+        }
+        List<String> fieldNames = List.of(key.split(","));
+        List<DatabaseColumn> projectedColumns = new ArrayList<>();
+        for (DatabaseColumn col : columns.values()) {
+            if (fieldNames.contains(col.jsonField)) {
+                projectedColumns.add(col);
+            }
+        }
+        for (String fieldName : fieldNames) {
+            if (projectedColumns.stream().noneMatch(col -> col.jsonField.equals(fieldName))) {
+                throw new IllegalArgumentException("Field " + fieldName + " is not returned by this query");
+            }
+        }
+        if (projectedColumns.size() == columns.size()) {
+            return null;
+        }
+        QueryVariant variant = null;
+        if (projectionSql != null) {
+            variant = new QueryVariant(projectionSql, projectedColumns);
+        }
+        else if (projectionSqlEnabled) {
+            StringBuilder sb = new StringBuilder("SELECT ");
+            for (int i = 0; i < projectedColumns.size(); i++) {
+                sb.append(i == 0 ? "[" : ", [").append(projectedColumns.get(i).name.replace("]", "]]")).append(']');
+            }
+            sb.append(" FROM (").append(sqlString).append(") AS projected_q");
+            variant = new QueryVariant(sb.toString(), projectedColumns);
+        }
+        return new Projection(key, new CompactDetailsMap.Schema(fieldNames), variant, configured);
+    }
+
+    // Sorted, de-duplicated and comma separated, so that the same fields in any order share one projection
+    private static String canonicalFields(String fields) {
+        TreeSet<String> fieldNames = new TreeSet<>();
+        for (String field : fields.split(",")) {
+            if (!field.isBlank()) {
+                fieldNames.add(field.trim());
+            }
+        }
+        return String.join(",", fieldNames);
+    }
+
     public ReadResponse performQuery(ReadResponse response, Object lookupId) {
-        final String logPrefix = "performQuery() - {" + lookupId + " @ " + queryId + "} - ";
+        return performLookup(lookupId, lookupLogPrefix).applyTo(response);
+    }
 
+    /**
+     * Looks up a record, returning only the requested fields. Projections without their own SQL filter the full result.
+     * Projections with their own SQL are answered from the cached full result when it is fresh, or stale within the
+     * same limits as a full lookup. Otherwise a query selecting only those columns is executed, and its result is not
+     * cached.
+     *
+     * @param response
+     * @param lookupId
+     * @param fields comma separated JSON field names, or null for all fields
+     * @return
+     */
+    public ReadResponse performQuery(ReadResponse response, Object lookupId, String fields) {
+        final String logPrefix = lookupLogPrefix;
+        if (fields == null || fields.isBlank()) {
+            return performQuery(response, lookupId);
+        }
+        Projection projection;
+        try {
+            projection = getProjection(fields, logPrefix);
+        }
+        catch (IllegalArgumentException ex) {
+            return LookupResult.failure(ex.getMessage()).applyTo(response);
+        }
+        if (projection == null) {
+            return performQuery(response, lookupId);
+        }
+        if (log.isDebugEnabled()) {
+            log.debug("{}Performing lookup of fields {} for ID: {}", logPrefix, projection.key, lookupId);
+        }
+        projectedLookupCount.incrementAndGet();
+
+        if (projection.variant == null) {
+            return performLookup(lookupId, logPrefix).project(projection.fieldSchema, staleField).applyTo(response);
+        }
+        if (cache == null) {
+            return lookup(projection.variant, lookupId, logPrefix).applyTo(response);
+        }
+
+        String cacheKey = lookupId.toString();
+        LookupCache.CacheEntry entry = cache.get(cacheKey);
+        long entryAge = entry == null ? Long.MAX_VALUE : entry.getAgeNanos(System.nanoTime());
+        if (entryAge <= cacheTtlNanos) {
+            log.debug("{}Returning projection of cached result", logPrefix);
+            cacheHitCount.incrementAndGet();
+            return entry.getResult().project(projection.fieldSchema, staleField).applyTo(response);
+        }
+        if (entryAge <= cacheTtlNanos + cacheStaleWhileRevalidateNanos) {
+            log.debug("{}Returning projection of stale cached result and refreshing in the background", logPrefix);
+            staleServeCount.incrementAndGet();
+            refreshInBackground(cacheKey, lookupId, entry, logPrefix);
+            return entry.getResult().asStale(staleField).project(projection.fieldSchema, staleField).applyTo(response);
+        }
+
+        cacheMissCount.incrementAndGet();
+        if (entryAge <= cacheMaxStaleNanos && cacheStaleDeadlineMs > 0) {
+            // The stale record is cached in full, so it is refreshed in full and shares the lookup with other callers
+            LookupResult result = awaitLookup(sharedLookup(cacheKey, lookupId, entry, logPrefix), logPrefix);
+            if (result == null) {
+                staleOnDeadlineCount.incrementAndGet();
+                return entry.getResult().asStale(staleField).project(projection.fieldSchema, staleField).applyTo(response);
+            }
+            if (result.isFailure()) {
+                log.warn("{}Lookup failed, returning projection of stale cached result: {}", logPrefix, result.getErrorMessage());
+                staleOnErrorCount.incrementAndGet();
+                return entry.getResult().asStale(staleField).project(projection.fieldSchema, staleField).applyTo(response);
+            }
+            return result.project(projection.fieldSchema, staleField).applyTo(response);
+        }
+        LookupResult result = lookup(projection.variant, lookupId, logPrefix);
+        if (result.isFailure() && entryAge <= cacheMaxStaleNanos) {
+            log.warn("{}Projected lookup failed, returning projection of stale cached result: {}", logPrefix, result.getErrorMessage());
+            staleOnErrorCount.incrementAndGet();
+            return entry.getResult().asStale(staleField).project(projection.fieldSchema, staleField).applyTo(response);
+        }
+        return result.applyTo(response);
+    }
+
+    // Looks up the full record, through the cache if it is enabled
+    private LookupResult performLookup(Object lookupId, String logPrefix) {
         log.trace("{}Entering Method", logPrefix);
-        log.info("{}Performing lookup for ID: {}", logPrefix);
-
-        try (Connection conn = poolSource.getConnection()) {
-            log.trace("{}SQL: {}", logPrefix, sqlString);
-            try (PreparedStatement ps = conn.prepareStatement(sqlString, ResultSet.TYPE_SCROLL_SENSITIVE, ResultSet.CONCUR_READ_ONLY)) {
-                String lookupIdString = "";
-                switch (searchDataType) {
-                    case TEXT -> {
-                        ps.setString(1, (String) lookupId);
-                        lookupIdString = (String) lookupId;
-                    }
-                    case NUMBER -> {
-                        ps.setLong(1, (Long) lookupId);
-                        lookupIdString = ((Long) lookupId).toString();
+        log.debug("{}Performing lookup for ID: {}", logPrefix, lookupId);
+
+        if (cache == null) {
+            return lookup(fullVariant, lookupId, logPrefix);
+        }
+
+        String cacheKey = lookupId.toString();
+        LookupCache.CacheEntry entry = cache.get(cacheKey);
+        long entryAge = entry == null ? Long.MAX_VALUE : entry.getAgeNanos(System.nanoTime());
+        if (entryAge <= cacheTtlNanos) {
+            log.debug("{}Returning cached result", logPrefix);
+            cacheHitCount.incrementAndGet();
+            return entry.getResult();
+        }
+        if (entryAge <= cacheTtlNanos + cacheStaleWhileRevalidateNanos) {
+            log.debug("{}Returning stale cached result and refreshing in the background", logPrefix);
+            staleServeCount.incrementAndGet();
+            refreshInBackground(cacheKey, lookupId, entry, logPrefix);
+            return entry.getResult().asStale(staleField);
+        }
+
+        cacheMissCount.incrementAndGet();
+        if (entryAge <= cacheMaxStaleNanos && cacheStaleDeadlineMs > 0) {
+            LookupResult result = awaitLookup(sharedLookup(cacheKey, lookupId, entry, logPrefix), logPrefix);
+            if (result == null) {
+                staleOnDeadlineCount.incrementAndGet();
+                return entry.getResult().asStale(staleField);
+            }
+            if (result.isFailure()) {
+                log.warn("{}Lookup failed, returning stale cached result: {}", logPrefix, result.getErrorMessage());
+                staleOnErrorCount.incrementAndGet();
+                return entry.getResult().asStale(staleField);
+            }
+            return result;
+        }
+        long lookupStartNanos = System.nanoTime();
+        LookupResult result = lookup(fullVariant, lookupId, logPrefix);
+        if (result.getStatus() == PluginResponse.ResponseStatus.SUCCESS) {
+            cache.put(cacheKey, result, lookupStartNanos);
+        }
+        else if (result.isFailure() && entryAge <= cacheMaxStaleNanos) {
+            log.warn("{}Lookup failed, returning stale cached result: {}", logPrefix, result.getErrorMessage());
+            staleOnErrorCount.incrementAndGet();
+            return entry.getResult().asStale(staleField);
+        }
+        else if (entry != null) {
+            cache.remove(cacheKey);
+        }
+        return result;
+    }
+
+    private void refreshInBackground(String cacheKey, Object lookupId, LookupCache.CacheEntry entry, String logPrefix) {
+        if (entry.isLookupInProgress()) {
+            log.trace("{}Refresh already in progress", logPrefix);
+            return;
+        }
+        sharedLookup(cacheKey, lookupId, entry, logPrefix).thenAccept(result -> {
+            if (result != null && result.isFailure()) {
+                log.warn("{}Background refresh failed, keeping stale result", logPrefix);
+            }
+        });
+    }
+
+    // Returns the lookup of the record already in progress, or starts one on a lookup thread, so that only one runs per
+    // record however many callers need it. Its result updates the cache when it completes, whether or not anyone is still
+    // waiting. Completes with null if every lookup thread is busy
+    private CompletableFuture<LookupResult> sharedLookup(String cacheKey, Object lookupId, LookupCache.CacheEntry entry, String logPrefix) {
+        CompletableFuture<LookupResult> future = new CompletableFuture<>();
+        CompletableFuture<LookupResult> inProgress = entry.startLookup(future);
+        if (inProgress != null) {
+            log.debug("{}Waiting for the lookup of this record already in progress", logPrefix);
+            sharedLookupCount.incrementAndGet();
+            return inProgress;
+        }
+        long lookupStartNanos = System.nanoTime();
+        CompletableFuture<LookupResult> started;
+        try {
+            started = CompletableFuture.supplyAsync(() -> lookup(fullVariant, lookupId, logPrefix), lookupExecutor);
+        }
+        catch (RejectedExecutionException ex) {
+            log.debug("{}All lookup threads are busy", logPrefix);
+            lookupThreadsBusyCount.incrementAndGet();
+            entry.finishLookup(future);
+            future.complete(null);
+            return future;
+        }
+        started.whenComplete((result, ex) -> {
+            if (ex != null) {
+                log.error("{}Exception performing lookup", logPrefix, ex);
+                result = LookupResult.failure("Exception performing lookup -- " + ex.getMessage());
+            }
+            else if (result.getStatus() == PluginResponse.ResponseStatus.SUCCESS) {
+                cache.put(cacheKey, result, lookupStartNanos);
+            }
+            else if (!result.isFailure()) {
+                log.debug("{}Record no longer returned, removing from cache", logPrefix);
+                cache.remove(cacheKey);
+            }
+            entry.finishLookup(future);
+            future.complete(result);
+        });
+        return future;
+    }
+
+    /**
+     * Removes a record from the cache after it was changed in the database. Lookups of the record that are already in
+     * progress read it before the change, so their results are not cached. When refreshing, the record is looked up
+     * again on the calling thread, but only if it was cached here to begin with. The journal poller calls this for one
+     * record at a time, so a bulk change never turns into a burst of concurrent lookups.
+     *
+     * @param objectId the lookup ID of the changed record, normalised the same way as a request
+     * @param refresh true to reload the record, false to just evict it
+     */
+    void invalidate(String objectId, boolean refresh) {
+        final String logPrefix = "invalidate() - {" + queryId + "} - ";
+        if (cache == null) {
+            return;
+        }
+        Object lookupId;
+        try {
+            lookupId = parseKey(objectId);
+        }
+        catch (IllegalArgumentException ex) {
+            log.debug("{}Ignoring invalidation for ID {}: {}", logPrefix, objectId, ex.getMessage());
+            return;
+        }
+        String cacheKey = lookupId.toString();
+        // Recorded even if the record is not cached, as a lookup of it may already be in progress. Always evict first so
+        // the old result is never served as fresh while the reload is running
+        if (!cache.invalidate(cacheKey)) {
+            return;
+        }
+        invalidationCount.incrementAndGet();
+        log.debug("{}Invalidated cached result for ID: {}", logPrefix, cacheKey);
+        if (!refresh) {
+            return;
+        }
+        long lookupStartNanos = System.nanoTime();
+        LookupResult result = lookup(fullVariant, lookupId, logPrefix);
+        if (result.getStatus() == PluginResponse.ResponseStatus.SUCCESS) {
+            cache.put(cacheKey, result, lookupStartNanos);
+        }
+    }
+
+    // Waits for a shared lookup until the stale deadline, so that the caller can be given a stale result rather than
+    // waiting out a failover or a dead connection. Returns null if there is no result by then, which is not an error: the
+    // lookup carries on and refreshes the cache when it completes
+    private LookupResult awaitLookup(CompletableFuture<LookupResult> future, String logPrefix) {
+        try {
+            LookupResult result = future.get(cacheStaleDeadlineMs, TimeUnit.MILLISECONDS);
+            if (result == null) {
+                log.debug("{}Lookup could not be started, returning stale cached result", logPrefix);
+            }
+            return result;
+        }
+        catch (TimeoutException ex) {
+            log.debug("{}Lookup has not completed within {}ms, returning stale cached result", logPrefix, cacheStaleDeadlineMs);
+            return null;
+        }
+        catch (InterruptedException ex) {
+            log.warn("{}Interrupted waiting for lookup", logPrefix);
+            Thread.currentThread().interrupt();
+            return LookupResult.failure("Interrupted waiting for lookup");
+        }
+        catch (ExecutionException ex) {
+            log.error("{}Exception performing lookup", logPrefix, ex.getCause());
+            return LookupResult.failure("Exception performing lookup -- " + ex.getCause().getMessage());
+        }
+    }
+
+    /**
+     * Sets the listener given the duration of every database lookup for this query, including background refreshes.
+     * Lookups answered from the cache are not reported.
+     *
+     * @param listener
+     */
+    void setLookupLatencyListener(LongConsumer listener) {
+        this.lookupLatencyListener = listener;
+    }
+
+    // Performs the database lookup, hedging it if enabled
+    private LookupResult lookup(QueryVariant variant, Object lookupId, String logPrefix) {
+        lookupCount.incrementAndGet();
+        long startTime = System.nanoTime();
+        LookupResult result;
+        if (hedgeEnabled) {
+            result = performHedgedLookup(variant, lookupId, logPrefix);
+        }
+        else {
+            result = executeLookup(poolSource, variant, lookupId, new LookupAttempt(false), logPrefix);
+        }
+        lookupLatencyListener.accept(System.nanoTime() - startTime);
+        return result;
+    }
+
+    // Sends the lookup to the pool, and if it has not returned within the hedge delay sends an identical lookup to the
+    // replica (or another pool connection). The first non-failure result is returned and the other one is cancelled.
+    private LookupResult performHedgedLookup(QueryVariant variant, Object lookupId, String logPrefix) {
+        log.trace("{}Entering Method", logPrefix);
+        hedgeBudget.recordLookup();
+
+        LookupAttempt primary = new LookupAttempt(false);
+        CompletableFuture<LookupResult> primaryFuture;
+        try {
+            primaryFuture = CompletableFuture.supplyAsync(() -> executeLookup(poolSource, variant, lookupId, primary, logPrefix), lookupExecutor);
+        }
+        catch (RejectedExecutionException ex) {
+            log.debug("{}All lookup threads are busy, looking up without hedging", logPrefix);
+            lookupThreadsBusyCount.incrementAndGet();
+            return executeLookup(poolSource, variant, lookupId, primary, logPrefix);
+        }
+        long delay = getHedgeDelayMs();
+        try {
+            return primaryFuture.get(delay, TimeUnit.MILLISECONDS);
+        }
+        catch (TimeoutException ex) {
+            log.debug("{}Lookup has not completed within {}ms, considering a hedged request", logPrefix, delay);
+        }
+        catch (InterruptedException ex) {
+            log.warn("{}Interrupted waiting for lookup", logPrefix);
+            primary.cancel();
+            Thread.currentThread().interrupt();
+            return LookupResult.failure("Interrupted waiting for lookup");
+        }
+        catch (ExecutionException ex) {
+            log.error("{}Exception performing lookup", logPrefix, ex.getCause());
+            return LookupResult.failure("Exception performing lookup -- " + ex.getCause().getMessage());
+        }
+
+        if (!hedgeBudget.tryAcquire()) {
+            log.debug("{}Hedge budget exhausted, waiting for original lookup", logPrefix);
+            return primaryFuture.handle((r, ex) -> r != null ? r : LookupResult.failure("Exception performing lookup -- " + ex.getMessage())).join();
+        }
+
+        HikariDataSource hedgeSource = replicaSource != null ? replicaSource : poolSource;
+        log.debug("{}Issuing hedged lookup to {}", logPrefix, replicaSource != null ? "replica" : "primary pool");
+        LookupAttempt hedge = new LookupAttempt(true);
+        CompletableFuture<LookupResult> hedgeFuture;
+        try {
+            hedgeFuture = CompletableFuture.supplyAsync(() -> executeLookup(hedgeSource, variant, lookupId, hedge, logPrefix), lookupExecutor);
+        }
+        catch (RejectedExecutionException ex) {
+            log.debug("{}All lookup threads are busy, waiting for original lookup", logPrefix);
+            lookupThreadsBusyCount.incrementAndGet();
+            return primaryFuture.handle((r, e) -> r != null ? r : LookupResult.failure("Exception performing lookup -- " + e.getMessage())).join();
+        }
+        hedgeCount.incrementAndGet();
+
+        // The first attempt to come back with anything other than a failure wins. If both fail, report the original failure
+        CompletableFuture<LookupResult> winner = new CompletableFuture<>();
+        AtomicInteger remaining = new AtomicInteger(2);
+        primaryFuture.whenComplete((r, ex) -> {
+            LookupResult res = r != null ? r : LookupResult.failure("Exception performing lookup -- " + ex.getMessage());
+            if (!res.isFailure() || remaining.decrementAndGet() == 0) {
+                winner.complete(res);
+            }
+        });
+        hedgeFuture.whenComplete((r, ex) -> {
+            LookupResult res = r != null ? r : LookupResult.failure("Exception performing hedged lookup -- " + ex.getMessage());
+            if (!res.isFailure() && winner.complete(res)) {
+                hedgeWinCount.incrementAndGet();
+            }
+            else if (res.isFailure() && remaining.decrementAndGet() == 0) {
+                winner.complete(primaryFuture.getNow(res));
+            }
+        });
+
+        LookupResult result = winner.join();
+        if (hedgeFuture.isDone() && hedgeFuture.getNow(null) == result) {
+            log.debug("{}Hedged lookup won, cancelling original", logPrefix);
+            primary.cancel();
+        }
+        else {
+            log.debug("{}Original lookup won, cancelling hedge", logPrefix);
+            hedge.cancel();
+        }
+        return result;
+    }
+
+    private long getHedgeDelayMs() {
+        if (hedgeDelayMs >= 0) {
+            return hedgeDelayMs;
+        }
+        long p95 = latencyTracker.getPercentileNanos();
+        if (p95 < 0) {
+            return DEFAULT_HEDGE_DELAY_MS;
+        }
+        return Math.max(hedgeMinDelayMs, TimeUnit.NANOSECONDS.toMillis(p95));
+    }
+
+    /**
+     * Executes the query once on the supplied connection using the configured warm-up ID, so that the statement handle
+     * is prepared and cached on that connection and the plan is compiled before the first real lookup. Each statement is
+     * given the warm-up query timeout, and projections are not warmed up if the full query fails.
+     *
+     * @param conn
+     * @return true if a warm-up ID is configured and the query executed without error
+     */
+    public boolean warmUp(Connection conn) {
+        final String logPrefix = "warmUp() - {" + queryId + "} - ";
+        log.trace("{}Entering Method", logPrefix);
+        if (warmupId == null) {
+            log.trace("{}No warm-up ID configured", logPrefix);
+            return false;
+        }
+        LookupResult result = executeOnConnection(conn, fullVariant, warmupId, new LookupAttempt(false), new LookupTimings(), warmupTimeoutSeconds, logPrefix);
+        if (result.isFailure()) {
+            log.debug("{}Warm-up failed, not warming up projections: {}", logPrefix, result.getErrorMessage());
+            return false;
+        }
+        for (Projection projection : projectionMap.values()) {
+            if (projection.configured && projection.variant != null) {
+                executeOnConnection(conn, projection.variant, warmupId, new LookupAttempt(false), new LookupTimings(), warmupTimeoutSeconds, logPrefix);
+            }
+        }
+        log.debug("{}Warm-up finished with status {}", logPrefix, result.getStatus());
+        return true;
+    }
+
+    private LookupResult executeLookup(HikariDataSource source, QueryVariant variant, Object lookupId, LookupAttempt attempt, String logPrefix) {
+        LookupEvent event = new LookupEvent();
+        event.begin();
+        LookupTimings timings = new LookupTimings();
+        LookupResult result;
+        long startTime = System.nanoTime();
+        try (Connection conn = source.getConnection()) {
+            timings.endPhase(LookupTimings.Phase.ACQUIRE);
+            result = executeOnConnection(conn, variant, lookupId, attempt, timings, 0, logPrefix);
+        }
+        catch (SQLException ex) {
+            timings.endPhase(LookupTimings.Phase.ACQUIRE);
+            log.error("{}SQL Exception on Getting Connection", logPrefix, ex);
+            result = LookupResult.failure("SQL Exception on Getting Connection -- " + ex.getMessage());
+        }
+        // Only the original attempt feeds the percentile used for the hedge delay. Recording the winner of a hedged
+        // lookup would shrink the delay as hedging trims the tail, causing yet more hedges. An original attempt
+        // cancelled because its hedge won is recorded up to the cancellation, which understates the tail rather
+        // than dropping it
+        if (!attempt.hedge && (!result.isFailure() || attempt.isCancelled())) {
+            latencyTracker.record(System.nanoTime() - startTime);
+        }
+        recordTimings(event, variant, timings, attempt, result);
+        return result;
+    }
+
+    // Emits the JFR event for the attempt, and writes it to the slow query log if it is over the threshold
+    private void recordTimings(LookupEvent event, QueryVariant variant, LookupTimings timings, LookupAttempt attempt, LookupResult result) {
+        timings.finish();
+        String outcome = attempt.isCancelled() ? "CANCELLED" : result.getStatus().name();
+        if (event.shouldCommit()) {
+            event.queryId = queryId;
+            event.outcome = outcome;
+            event.hedge = attempt.hedge;
+            event.acquireTime = timings.getPhaseNanos(LookupTimings.Phase.ACQUIRE);
+            event.prepareTime = timings.getPhaseNanos(LookupTimings.Phase.PREPARE);
+            event.executeTime = timings.getPhaseNanos(LookupTimings.Phase.EXECUTE);
+            event.fetchTime = timings.getPhaseNanos(LookupTimings.Phase.FETCH);
+            event.mapTime = timings.getPhaseNanos(LookupTimings.Phase.MAP);
+            event.commit();
+        }
+        slowQueryLog.record(queryId, variant.sqlId, searchDataType.name(), outcome, attempt.hedge, timings);
+    }
+
+    // Records whether this statement has been prepared on the physical connection before. This is not the driver's
+    // own cache hit rate: a handle evicted from the driver's cache is still counted as reused
+    private void trackStatementReuse(Connection conn, QueryVariant variant, String logPrefix) {
+        try {
+            if (variant.markPrepared(conn.unwrap(Connection.class))) {
+                statementFirstUseCount.incrementAndGet();
+            }
+            else {
+                statementReuseCount.incrementAndGet();
+            }
+        }
+        catch (SQLException ex) {
+            log.trace("{}Could not unwrap connection: {}", logPrefix, ex.getMessage());
+        }
+    }
+
+    // A query timeout of 0 leaves the statement without one
+    private LookupResult executeOnConnection(Connection conn, QueryVariant variant, Object lookupId, LookupAttempt attempt, LookupTimings timings, int queryTimeoutSeconds, String logPrefix) {
+        log.trace("{}SQL: {}", logPrefix, variant.sql);
+        trackStatementReuse(conn, variant, logPrefix);
+        // Forward only - a scrollable result set makes the driver open a server cursor, which bypasses the prepared statement handle cache
+        try (PreparedStatement ps = conn.prepareStatement(variant.sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
+            if (!attempt.setStatement(ps)) {
+                log.debug("{}Lookup was cancelled before execution", logPrefix);
+                return LookupResult.failure("Lookup was cancelled");
+            }
+            // Bound with the type of the search column, so that SQL Server can seek on its index without converting it
+            String lookupIdString = lookupId.toString();
+            switch (searchDataType) {
+                case TEXT -> {
+                    if (keyNational) {
+                        ps.setNString(1, (String) lookupId);
                     }
-                    case TIMESTAMP -> {
-                        ps.setTimestamp(1, Timestamp.valueOf((LocalDateTime) lookupId));
-                        lookupIdString = ((LocalDateTime) lookupId).toString();
+                    else {
+                        ps.setString(1, (String) lookupId);
                     }
                 }
-                ps.setMaxRows(2); // we set max rows here to two - for performance implications. We only ever want one result, so if > 1 are returned we will error out anwyay
+                case NUMBER ->
+                    ps.setLong(1, (Long) lookupId);
+                case TIMESTAMP ->
+                    ps.setTimestamp(1, Timestamp.valueOf((LocalDateTime) lookupId));
+            }
+            if (queryTimeoutSeconds > 0) {
+                ps.setQueryTimeout(queryTimeoutSeconds);
+            }
+            ps.setMaxRows(2); // we set max rows here to two - for performance implications. We only ever want one result, so if > 1 are returned we will error out anwyay
+            if (log.isTraceEnabled()) {
                 log.trace("{}Added parameter {} - {} ({})", logPrefix, 1, lookupIdString, searchDataType.name());
-                log.trace("{}About to execute query", logPrefix);
-                try (ResultSet rs = ps.executeQuery()) {
-                    if (!rs.last()) {
-                        log.warn("{}Recordset Last record not found - no records exist", logPrefix);
-                        response.setErrorMessage("Record was not found");
-                        response.setStatus(PluginResponse.ResponseStatus.RECORD_NOT_FOUND);
-                        return response;
-                    }
-                    if (rs.getRow() > 1) {
-                        log.warn("{}Recordset row number greater than one - muliple records found", logPrefix);
-                        response.setErrorMessage("More than one record was found");
-                        response.setStatus(PluginResponse.ResponseStatus.MULTIPLE_RECORDS);
-                        return response;
-                    }
-                    log.debug("{}Recordset one record found, constructing result", logPrefix);
-                    response.setObjectId(lookupIdString);
+            }
+            log.trace("{}About to execute query", logPrefix);
+            timings.endPhase(LookupTimings.Phase.PREPARE);
+            try (ResultSet rs = ps.executeQuery()) {
+                timings.endPhase(LookupTimings.Phase.EXECUTE);
+                boolean found = rs.next();
+                timings.endPhase(LookupTimings.Phase.FETCH);
+                if (!found) {
+                    log.debug("{}Recordset first record not found - no records exist for {}", logPrefix, lookupIdString);
+                    return LookupResult.error(PluginResponse.ResponseStatus.RECORD_NOT_FOUND, "Record was not found");
+                }
+                log.debug("{}Recordset record found, constructing result", logPrefix);
 
-                    Map<String, Serializable> dataMap = new HashMap<>();
+                ResultLayout layout = variant.layout;
+                if (layout == null) {
+                    layout = resolveLayout(rs, variant);
+                }
+                Serializable[] values = new Serializable[layout.schema.size()];
 
-                    for (DatabaseColumn col : columns.values()) {
-                        log.trace("{}Looking up data for {}", logPrefix, col.name);
-                        String colData = "";
-                        switch (col.dataType) {
-                            case TEXT -> {
-                                colData = rs.getString(col.name);
-                            }
-                            case NUMBER -> {
-                                colData = ((Long) rs.getLong(col.name)).toString();
-                            }
-                            case TIMESTAMP -> {
-                                colData = rs.getTimestamp(col.name).toLocalDateTime().toString();
-                            }
-                        }
-                        log.trace("{}Column {} = {}", logPrefix, col.name, colData);
-                        String tempData = col.dataEnumeration.getOrDefault(colData, colData);
-                        log.trace("{} >> Enum result {} -> {}", logPrefix, colData, tempData);
-                        String jsonCol = col.jsonField;
-                        log.trace("{} ++ Adding {} = {} to the map", logPrefix, jsonCol, tempData);
-                        dataMap.put(jsonCol, tempData);
+                // Checked once, as the three-argument trace calls below allocate their argument array even when disabled
+                boolean traceEnabled = log.isTraceEnabled();
+                for (int i = 0; i < layout.columns.length; i++) {
+                    DatabaseColumn col = layout.columns[i];
+                    Serializable colData = col.read(rs, layout.indexes[i]);
+                    if (traceEnabled) {
+                        log.trace("{}Column {} ({}) = {}", logPrefix, col.name, layout.indexes[i], colData);
+                        log.trace("{} ++ Adding {} = {} to the map", logPrefix, col.jsonField, colData);
                     }
+                    values[layout.slots[i]] = colData;
+                }
+                Map<String, Serializable> dataMap = new CompactDetailsMap(layout.schema, values);
+                timings.endPhase(LookupTimings.Phase.MAP);
 
-                    response.setStatus(PluginResponse.ResponseStatus.SUCCESS);
-                    response.setObjectDetails(dataMap);
-                    log.info("{}Successfully looked up record from DB", logPrefix);
+                boolean multiple = rs.next();
+                timings.endPhase(LookupTimings.Phase.FETCH);
+                if (multiple) {
+                    log.warn("{}Recordset has a second row - muliple records found for {}", logPrefix, lookupIdString);
+                    return LookupResult.error(PluginResponse.ResponseStatus.MULTIPLE_RECORDS, "More than one record was found");
                 }
-                catch (SQLException ex) {
+
+                log.debug("{}Successfully looked up record from DB", logPrefix);
+                return LookupResult.success(lookupIdString, dataMap);
+            }
+            catch (SQLException ex) {
+                if (attempt.isCancelled()) {
+                    log.debug("{}Cancelled lookup ended with SQL Exception on RecordSet: {}", logPrefix, ex.getMessage());
+                }
+                else {
                     log.error("{}SQL Exception on RecordSet", logPrefix, ex);
-                    response.setErrorMessage("SQL Exception on RecordSet -- " + ex.getMessage());
-                    response.setStatus(PluginResponse.ResponseStatus.FAILURE);
                 }
+                return LookupResult.failure("SQL Exception on RecordSet -- " + ex.getMessage());
             }
-            catch (SQLException ex) {
+        }
+        catch (SQLException ex) {
+            if (attempt.isCancelled()) {
+                log.debug("{}Cancelled lookup ended with SQL Exception on PreparedStatement: {}", logPrefix, ex.getMessage());
+            }
+            else {
                 log.error("{}SQL Exception on PreparedStatement", logPrefix, ex);
-                response.setErrorMessage("SQL Exception on PreparedStatement -- " + ex.getMessage());
-                response.setStatus(PluginResponse.ResponseStatus.FAILURE);
             }
+            return LookupResult.failure("SQL Exception on PreparedStatement -- " + ex.getMessage());
         }
-        catch (SQLException ex) {
-            log.error("{}SQL Exception on Getting Connection", logPrefix, ex);
-            response.setErrorMessage("SQL Exception on Getting Connection -- " + ex.getMessage());
-            response.setStatus(PluginResponse.ResponseStatus.FAILURE);
+    }
+
+    // Finds the position of each column in the result set, so that columns are read by index in select order. The SQL
+    // never changes, so this is only done for the first result set of each variant
+    private ResultLayout resolveLayout(ResultSet rs, QueryVariant variant) throws SQLException {
+        Map<Integer, DatabaseColumn> byIndex = new TreeMap<>();
+        for (DatabaseColumn col : variant.columns) {
+            byIndex.put(rs.findColumn(col.name), col);
+        }
+        ResultLayout layout = new ResultLayout(byIndex);
+        variant.layout = layout;
+        return layout;
+    }
+
+    /**
+     * Adds the lookup, hedging, cache and statement reuse counters for this query to the supplied metric map
+     *
+     * @param metricMap
+     */
+    public void collectMetrics(Map<String, Serializable> metricMap) {
+        long lookups = lookupCount.get();
+        long p95 = latencyTracker.getPercentileNanos();
+        metricMap.put("query." + queryId + ".lookups", lookups);
+        metricMap.put("query." + queryId + ".p95-ms", p95 < 0 ? -1L : TimeUnit.NANOSECONDS.toMillis(p95));
+        metricMap.put("query." + queryId + ".lookup-threads-busy", lookupThreadsBusyCount.get());
+        if (hedgeEnabled) {
+            long hedges = hedgeCount.get();
+            metricMap.put("query." + queryId + ".hedges", hedges);
+            metricMap.put("query." + queryId + ".hedge-wins", hedgeWinCount.get());
+            metricMap.put("query." + queryId + ".hedge-rate", lookups == 0 ? 0.0 : (hedges * 100.0) / lookups);
+        }
+        if (cache != null) {
+            metricMap.put("query." + queryId + ".cache-size", cache.size());
+            metricMap.put("query." + queryId + ".cache-hits", cacheHitCount.get());
+            metricMap.put("query." + queryId + ".cache-misses", cacheMissCount.get());
+            metricMap.put("query." + queryId + ".stale-serves", staleServeCount.get());
+            metricMap.put("query." + queryId + ".stale-on-error-serves", staleOnErrorCount.get());
+            metricMap.put("query." + queryId + ".stale-on-deadline-serves", staleOnDeadlineCount.get());
+            metricMap.put("query." + queryId + ".shared-lookups", sharedLookupCount.get());
+            metricMap.put("query." + queryId + ".invalidations", invalidationCount.get());
+        }
+        metricMap.put("query." + queryId + ".projected-lookups", projectedLookupCount.get());
+        long oversizeValues = 0;
+        for (DatabaseColumn col : columns.values()) {
+            oversizeValues += col.oversizeCount.get();
         }
-        return response;
+        metricMap.put("query." + queryId + ".oversize-values", oversizeValues);
+        long statementReuses = statementReuseCount.get();
+        long statementTotal = statementReuses + statementFirstUseCount.get();
+        metricMap.put("query." + queryId + ".statement-reuse-rate", statementTotal == 0 ? 0.0 : (statementReuses * 100.0) / statementTotal);
     }
 
+    // Tracks the statement of an in-flight lookup so that the losing side of a hedged request can be cancelled
+    private static class LookupAttempt {
+
+        private final boolean hedge;
+        private PreparedStatement statement;
+        private boolean cancelled = false;
+
+        private LookupAttempt(boolean hedge) {
+            this.hedge = hedge;
+        }
+
+        private synchronized boolean setStatement(PreparedStatement statement) {
+            this.statement = statement;
+            return !cancelled;
+        }
+
+        private synchronized boolean isCancelled() {
+            return cancelled;
+        }
+
+        private void cancel() {
+            PreparedStatement toCancel;
+            synchronized (this) {
+                cancelled = true;
+                toCancel = statement;
+            }
+            if (toCancel != null) {
+                try {
+                    toCancel.cancel();
+                }
+                catch (SQLException ex) {
+                    log.debug("cancel() - Exception cancelling statement: {}", ex.getMessage());
+                }
+            }
+        }
+    }
+
+    @ToString(exclude = {"numberEnumeration", "textEnumeration", "internedValues", "oversizeCount"})
     private static class DatabaseColumn {
 
         private String name;
         private ColumnDataType dataType;
         private String jsonField;
+        // Return NUMBER and TIMESTAMP values as Long and LocalDateTime rather than strings
+        private boolean typed;
         private Map<String, String> dataEnumeration = new TreeMap<>();
 
+        // Compiled from dataEnumeration: NUMBER columns use numberEnumeration, others use textEnumeration
+        private LongEnumTable numberEnumeration;
+        private Map<String, String> textEnumeration;
+
+        // Maximum characters (TEXT) or bytes (BINARY) read from the column. Zero means unlimited
+        private int maxLength;
+        // Return null for values over maxLength rather than truncating them
+        private boolean omitOversize;
+        private final AtomicLong oversizeCount = new AtomicLong();
+
+        // Bounded set of previously seen values, so that repeated low-cardinality values share one String instance.
+        // Null when interning is not enabled for the column
+        private Map<String, String> internedValues;
+        private int internMaxEntries;
+
+        private void compileEnumeration(String logPrefix) {
+            if (dataType == ColumnDataType.NUMBER) {
+                Map<Long, String> numericKeys = new HashMap<>();
+                dataEnumeration.forEach((key, value) -> {
+                    try {
+                        numericKeys.put(Long.valueOf(key), value);
+                    }
+                    catch (NumberFormatException ex) {
+                        log.warn("{}Enum value {} for NUMBER column {} is not a number. Ignoring", logPrefix, key, name);
+                    }
+                });
+                numberEnumeration = LongEnumTable.compile(numericKeys);
+            }
+            else if (!dataEnumeration.isEmpty()) {
+                textEnumeration = new HashMap<>(dataEnumeration);
+            }
+        }
+
+        // Reads the column from the current row, applying the enumeration. Values are only formatted as strings when
+        // the column is not typed and no enumeration matched
+        private Serializable read(ResultSet rs, int index) throws SQLException {
+            switch (dataType) {
+                case NUMBER -> {
+                    long value = rs.getLong(index);
+                    if (typed && rs.wasNull()) {
+                        return null;
+                    }
+                    String mapped = numberEnumeration == null ? null : numberEnumeration.get(value);
+                    if (mapped != null) {
+                        return mapped;
+                    }
+                    return typed ? (Serializable) value : Long.toString(value);
+                }
+                case TIMESTAMP -> {
+                    Timestamp value = rs.getTimestamp(index);
+                    if (value == null) {
+                        return null;
+                    }
+                    LocalDateTime dateTime = value.toLocalDateTime();
+                    if (textEnumeration == null) {
+                        return typed ? dateTime : dateTime.toString();
+                    }
+                    String text = dateTime.toString();
+                    String mapped = textEnumeration.get(text);
+                    return mapped != null ? mapped : typed ? dateTime : text;
+                }
+                case BINARY -> {
+                    return maxLength > 0 ? readBoundedBinary(rs, index) : encodeBinary(rs.getBytes(index));
+                }
+                default -> {
+                    String value = maxLength > 0 ? readBoundedText(rs, index) : rs.getString(index);
+                    if (value == null) {
+                        return null;
+                    }
+                    String mapped = textEnumeration == null ? null : textEnumeration.get(value);
+                    if (mapped != null) {
+                        return mapped;
+                    }
+                    return internedValues == null ? value : intern(value);
+                }
+            }
+        }
+
+        // Streams at most maxLength + 1 characters, so an oversize value is never held on the heap in full. Closing the
+        // reader early lets the driver skip the rest of the value
+        private String readBoundedText(ResultSet rs, int index) throws SQLException {
+            try (Reader reader = rs.getCharacterStream(index)) {
+                if (reader == null) {
+                    return null;
+                }
+                StringBuilder sb = new StringBuilder();
+                char[] chunk = new char[Math.min(STREAM_CHUNK_SIZE, maxLength + 1)];
+                int read;
+                while (sb.length() <= maxLength && (read = reader.read(chunk, 0, Math.min(chunk.length, maxLength + 1 - sb.length()))) != -1) {
+                    sb.append(chunk, 0, read);
+                }
+                if (sb.length() <= maxLength) {
+                    return sb.toString();
+                }
+                oversizeCount.incrementAndGet();
+                return omitOversize ? null : sb.substring(0, maxLength);
+            }
+            catch (IOException ex) {
+                throw new SQLException("Exception reading column " + name, ex);
+            }
+        }
+
+        private String readBoundedBinary(ResultSet rs, int index) throws SQLException {
+            try (InputStream stream = rs.getBinaryStream(index)) {
+                if (stream == null) {
+                    return null;
+                }
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                byte[] chunk = new byte[Math.min(STREAM_CHUNK_SIZE, maxLength + 1)];
+                int read;
+                while (bytes.size() <= maxLength && (read = stream.read(chunk, 0, Math.min(chunk.length, maxLength + 1 - bytes.size()))) != -1) {
+                    bytes.write(chunk, 0, read);
+                }
+                if (bytes.size() <= maxLength) {
+                    return encodeBinary(bytes.toByteArray());
+                }
+                oversizeCount.incrementAndGet();
+                return omitOversize ? null : encodeBinary(Arrays.copyOf(bytes.toByteArray(), maxLength));
+            }
+            catch (IOException ex) {
+                throw new SQLException("Exception reading column " + name, ex);
+            }
+        }
+
+        private static String encodeBinary(byte[] value) {
+            return value == null ? null : Base64.getEncoder().encodeToString(value);
+        }
+
+        private String intern(String value) {
+            String existing = internedValues.get(value);
+            if (existing != null) {
+                return existing;
+            }
+            if (internedValues.size() >= internMaxEntries) {
+                return value;
+            }
+            existing = internedValues.putIfAbsent(value, value);
+            return existing == null ? value : existing;
+        }
+
+    }
+
+    // Columns in result set order with their result set indexes, and the response schema slot each one is written to.
+    // Columns sharing a JSON field share a slot, with the later column winning
+    private static class ResultLayout {
+
+        private final DatabaseColumn[] columns;
+        private final int[] indexes;
+        private final int[] slots;
+        private final CompactDetailsMap.Schema schema;
+
+        private ResultLayout(Map<Integer, DatabaseColumn> columnsByIndex) {
+            columns = new DatabaseColumn[columnsByIndex.size()];
+            indexes = new int[columns.length];
+            slots = new int[columns.length];
+            List<String> fieldNames = new ArrayList<>();
+            int i = 0;
+            for (Map.Entry<Integer, DatabaseColumn> entry : columnsByIndex.entrySet()) {
+                columns[i] = entry.getValue();
+                indexes[i] = entry.getKey();
+                int slot = fieldNames.indexOf(columns[i].jsonField);
+                if (slot < 0) {
+                    slot = fieldNames.size();
+                    fieldNames.add(columns[i].jsonField);
+                }
+                slots[i] = slot;
+                i++;
+            }
+            schema = new CompactDetailsMap.Schema(fieldNames);
+        }
+    }
+
+    // One SQL statement for the query and the columns it returns. The configured SQL is the full variant, and each
+    // projection with its own SQL is another
+    @ToString(exclude = {"columns", "layout", "preparedConnections"})
+    static class QueryVariant {
+
+        final String sql;
+        // Short identifier for the SQL string, used in the slow query log
+        private final String sqlId;
+        private final List<DatabaseColumn> columns;
+
+        // How the result set maps onto the response details. Null until the first result set has been seen
+        private volatile ResultLayout layout;
+
+        // Physical connections this statement has already been prepared on. The driver keeps the prepared handle per
+        // connection, so executing again on one of these can reuse it. Checked on every lookup but added to once per
+        // connection, so it is replaced on write and read without locking. Closed connections are dropped on the next write
+        private volatile List<WeakReference<Connection>> preparedConnections = List.of();
+
+        private QueryVariant(String sql, List<DatabaseColumn> columns) {
+            this.sql = sql;
+            this.sqlId = Integer.toHexString(sql.hashCode());
+            this.columns = columns;
+        }
+
+        // Returns true only the first time it is called for a connection
+        boolean markPrepared(Connection conn) {
+            if (isPrepared(conn)) {
+                return false;
+            }
+            synchronized (this) {
+                if (isPrepared(conn)) {
+                    return false;
+                }
+                List<WeakReference<Connection>> updated = new ArrayList<>(preparedConnections.size() + 1);
+                for (WeakReference<Connection> ref : preparedConnections) {
+                    if (ref.get() != null) {
+                        updated.add(ref);
+                    }
+                }
+                updated.add(new WeakReference<>(conn));
+                preparedConnections = List.copyOf(updated);
+                return true;
+            }
+        }
+
+        private boolean isPrepared(Connection conn) {
+            List<WeakReference<Connection>> refs = preparedConnections;
+            for (int i = 0; i < refs.size(); i++) {
+                if (refs.get(i).get() == conn) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    // A set of requested fields. Without a variant the fields are filtered from the full result
+    @ToString(exclude = {"fieldSchema"})
+    static class Projection {
+
+        final String key;
+        final CompactDetailsMap.Schema fieldSchema;
+        final QueryVariant variant;
+        private final boolean configured;
+
+        private Projection(String key, CompactDetailsMap.Schema fieldSchema, QueryVariant variant, boolean configured) {
+            this.key = key;
+            this.fieldSchema = fieldSchema;
+            this.variant = variant;
+            this.configured = configured;
+        }
     }
 
     private enum ColumnDataType {
         TEXT,
+        BINARY,
         NUMBER,
         TIMESTAMP
     }
@@ -0,0 +1,152 @@
+/*
+ *   management-sql-plugin - HealthPublisher.java
+ *
+ *   Copyright (c) 2022-2023, Slinky Software
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as
+ *   published by the Free Software Foundation, either version 3 of the
+ *   License, or (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   A copy of the GNU Affero General Public License is located in the 
+ *   AGPL-3.0.md supplied with the source code.
+ *
+ */
+package com.slinkytoybox.gcloud.managementsqlplugin;
+
+import com.slinkytoybox.gcloud.platformconnectorplugin.health.HealthMetric;
+import com.slinkytoybox.gcloud.platformconnectorplugin.health.HealthResult;
+import com.slinkytoybox.gcloud.platformconnectorplugin.health.HealthState;
+import com.slinkytoybox.gcloud.platformconnectorplugin.health.HealthStatus;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Predicate;
+import lombok.ToString;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Holds the plugin health (overall status, component statuses and metrics) and pushes it to the container from a
+ * single background thread. Updates only mark the health as changed; it is then pushed at most once per interval, or
+ * straight away when the overall or a component health state changes. The push rate therefore does not depend on how
+ * often the health is updated.
+ *
+ * @author Michael Junek (michael@juneks.com.au)
+ */
+@Slf4j
+@ToString(exclude = {"sink", "metricMap", "componentStatusMap", "publisher"})
+class HealthPublisher {
+
+    // Delivers the health to the container. Returns false if it could not be delivered yet
+    private final Predicate<HealthResult> sink;
+
+    private final Map<String, Serializable> metricMap = new ConcurrentHashMap<>();
+    private final Map<String, HealthStatus> componentStatusMap = new ConcurrentHashMap<>();
+    private volatile HealthStatus overallStatus = new HealthStatus();
+
+    private final AtomicBoolean dirty = new AtomicBoolean(false);
+    private long publishIntervalMs;
+    private ScheduledExecutorService publisher;
+
+    HealthPublisher(Predicate<HealthResult> sink) {
+        this.sink = sink;
+    }
+
+    /**
+     * Starts the background publisher. Changes made before this are held and pushed on the first run.
+     *
+     * @param publishIntervalMs minimum time between pushes that are not state changes
+     */
+    synchronized void start(long publishIntervalMs) {
+        final String logPrefix = "start() - ";
+        log.trace("{}Entering Method", logPrefix);
+        this.publishIntervalMs = Math.max(1, publishIntervalMs);
+        publisher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "SQL-Plugin-Health");
+            t.setDaemon(true);
+            return t;
+        });
+        publisher.scheduleWithFixedDelay(this::publish, 0, this.publishIntervalMs, TimeUnit.MILLISECONDS);
+        log.debug("{}Started health publisher: {}", logPrefix, this);
+    }
+
+    synchronized void shutdown() {
+        if (publisher != null) {
+            publisher.shutdownNow();
+        }
+    }
+
+    void setMetric(String metricName, Serializable metricValue) {
+        Serializable previous = metricMap.put(metricName, metricValue);
+        if (!Objects.equals(previous, metricValue)) {
+            dirty.set(true);
+        }
+    }
+
+    void setComponentHealth(String componentName, HealthStatus componentStatus) {
+        HealthStatus previous = componentStatusMap.put(componentName, componentStatus);
+        dirty.set(true);
+        if (previous == null || previous.getHealthState() != componentStatus.getHealthState()) {
+            publishNow();
+        }
+    }
+
+    void setOverallHealth(HealthState state, String statusMessage) {
+        // Replaced rather than modified, so a push in progress never sees a half updated status
+        HealthStatus previous = overallStatus;
+        overallStatus = new HealthStatus().setHealthState(state).setHealthComment(statusMessage);
+        dirty.set(true);
+        if (previous.getHealthState() != state) {
+            publishNow();
+        }
+    }
+
+    /**
+     * @return a copy of the complete health picture
+     */
+    HealthResult snapshot() {
+        List<HealthMetric> metrics = new ArrayList<>(metricMap.size());
+        metricMap.forEach((name, value) -> metrics.add(new HealthMetric().setMetricName(name).setMetricValue(value)));
+        return new HealthResult()
+                .setOverallStatus(overallStatus)
+                .setComponentStatus(new HashMap<>(componentStatusMap))
+                .setMetrics(metrics);
+    }
+
+    private synchronized void publishNow() {
+        if (publisher != null && !publisher.isShutdown()) {
+            publisher.execute(this::publish);
+        }
+    }
+
+    // Runs only on the publisher thread. Several changes made since the last push go out as a single push
+    private void publish() {
+        final String logPrefix = "publish() - ";
+        if (!dirty.getAndSet(false)) {
+            return;
+        }
+        try {
+            if (!sink.test(snapshot())) {
+                dirty.set(true);
+            }
+        }
+        catch (RuntimeException ex) {
+            log.warn("{}Exception pushing health to container: {}", logPrefix, ex.getMessage());
+            dirty.set(true);
+        }
+    }
+
+}
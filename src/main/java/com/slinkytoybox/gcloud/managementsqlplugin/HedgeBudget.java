@@ -0,0 +1,56 @@
+/*
+ *   management-sql-plugin - HedgeBudget.java
+ *
+ *   Copyright (c) 2022-2023, Slinky Software
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as
+ *   published by the Free Software Foundation, either version 3 of the
+ *   License, or (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   A copy of the GNU Affero General Public License is located in the 
+ *   AGPL-3.0.md supplied with the source code.
+ *
+ */
+package com.slinkytoybox.gcloud.managementsqlplugin;
+
+import lombok.ToString;
+
+/**
+ * Plugin-wide cap on how many hedged (duplicate) lookups may be issued. Every hedge-enabled lookup earns a fraction of
+ * a token, and every hedge spends a whole one. The bucket is capped so that a long quiet period cannot be saved up and
+ * spent all at once when the database is already struggling.
+ *
+ * @author Michael Junek (michael@juneks.com.au)
+ */
+@ToString
+class HedgeBudget {
+
+    private final double tokensPerLookup;
+    private final double maxTokens;
+    private double tokens;
+
+    HedgeBudget(int budgetPercent, int maxBurst) {
+        this.tokensPerLookup = Math.max(0, budgetPercent) / 100.0;
+        this.maxTokens = Math.max(1, maxBurst);
+        this.tokens = this.maxTokens;
+    }
+
+    synchronized void recordLookup() {
+        tokens = Math.min(maxTokens, tokens + tokensPerLookup);
+    }
+
+    synchronized boolean tryAcquire() {
+        if (tokens >= 1.0) {
+            tokens -= 1.0;
+            return true;
+        }
+        return false;
+    }
+
+}
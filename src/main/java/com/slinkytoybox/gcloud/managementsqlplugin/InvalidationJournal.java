@@ -0,0 +1,224 @@
+/*
+ *   management-sql-plugin - InvalidationJournal.java
+ *
+ *   Copyright (c) 2022-2023, Slinky Software
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as
+ *   published by the Free Software Foundation, either version 3 of the
+ *   License, or (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   A copy of the GNU Affero General Public License is located in the 
+ *   AGPL-3.0.md supplied with the source code.
+ *
+ */
+package com.slinkytoybox.gcloud.managementsqlplugin;
+
+import com.zaxxer.hikari.HikariDataSource;
+import java.io.Serializable;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Properties;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicLong;
+import lombok.ToString;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Polls a change journal table for records that have been modified, and evicts (or refreshes) them from the lookup
+ * caches. Writers or triggers append a row per changed record; every plugin node reads the rows after the last sequence
+ * number it has seen, so all nodes converge within one poll interval without a message broker.
+ *
+ * Each poll is a single seek on the sequence column, which should be the clustered (or an indexed) key of the table.
+ * An IDENTITY value can commit after higher ones (e.g. under snapshot isolation), so each poll re-reads a window of
+ * sequence numbers below the last one seen, and skips the rows in it that were already applied.
+ *
+ * @author Michael Junek (michael@juneks.com.au)
+ */
+@Slf4j
+@ToString(exclude = {"poolSource", "queryMap"})
+class InvalidationJournal {
+
+    // Table and column names are concatenated into the SQL, so only allow plain (optionally bracketed) identifiers
+    private static final String IDENTIFIER_PATTERN = "^[A-Za-z0-9_\\[\\]]+(\\.[A-Za-z0-9_\\[\\]]+)*$";
+
+    private final HikariDataSource poolSource;
+    private final Map<String, DatabaseQuery> queryMap;
+
+    private final String pollSql;
+    private final String maxSequenceSql;
+    private final int batchSize;
+    private final boolean refresh;
+    // Number of sequence values below the last one seen that are read again on each poll
+    private final long overlap;
+
+    // Only written by the polling thread, read for metrics
+    private volatile long lastSequence = -1;
+    // Sequences applied within the overlap window, so that re-read rows are not applied twice
+    private final NavigableSet<Long> appliedSequences = new TreeSet<>();
+    private final AtomicLong appliedCount = new AtomicLong();
+    private final AtomicLong errorCount = new AtomicLong();
+
+    InvalidationJournal(Properties configuration, HikariDataSource poolSource, Map<String, DatabaseQuery> queryMap) {
+        final String logPrefix = "ctor() - ";
+        log.trace("{}Entering Method", logPrefix);
+        String table = configuration.getProperty("cloud.database.invalidation.table");
+        String sequenceColumn = configuration.getProperty("cloud.database.invalidation.sequence-column", "SEQ_ID");
+        String queryColumn = configuration.getProperty("cloud.database.invalidation.query-column", "QUERY_ID");
+        String keyColumn = configuration.getProperty("cloud.database.invalidation.key-column", "OBJECT_ID");
+        for (String identifier : new String[]{table, sequenceColumn, queryColumn, keyColumn}) {
+            if (identifier == null || !identifier.matches(IDENTIFIER_PATTERN)) {
+                log.error("{}Invalidation journal table or column name '{}' is not valid", logPrefix, identifier);
+                throw new IllegalArgumentException("Invalidation journal table or column name is not valid");
+            }
+        }
+        batchSize = Integer.valueOf(configuration.getProperty("cloud.database.invalidation.batch-size", "500"));
+        refresh = configuration.getProperty("cloud.database.invalidation.mode", "EVICT").equalsIgnoreCase("REFRESH");
+        overlap = Math.max(0, Long.valueOf(configuration.getProperty("cloud.database.invalidation.overlap", "100")));
+
+        pollSql = "SELECT TOP (?) " + sequenceColumn + ", " + queryColumn + ", " + keyColumn + " FROM " + table + " WHERE " + sequenceColumn + " > ? ORDER BY " + sequenceColumn;
+        maxSequenceSql = "SELECT MAX(" + sequenceColumn + ") FROM " + table;
+        this.poolSource = poolSource;
+        this.queryMap = queryMap;
+        log.debug("{}Invalidation journal: {}", logPrefix, this);
+    }
+
+    /**
+     * Reads and applies any new journal entries. Exceptions are logged and counted, and the next poll carries on from
+     * the last entry applied.
+     */
+    void poll() {
+        final String logPrefix = "poll() - ";
+        log.trace("{}Entering Method", logPrefix);
+        try (Connection conn = poolSource.getConnection()) {
+            if (lastSequence < 0) {
+                // Start from the current end of the journal. Anything before it is already reflected in an empty cache
+                try (PreparedStatement ps = conn.prepareStatement(maxSequenceSql); ResultSet rs = ps.executeQuery()) {
+                    lastSequence = rs.next() ? rs.getLong(1) : 0;
+                }
+                log.info("{}Starting invalidation journal from sequence {}", logPrefix, lastSequence);
+                markWindowApplied(conn);
+                return;
+            }
+            // The first batch starts below the last sequence seen, following batches carry on from the previous one
+            long from = lastSequence - overlap;
+            int read;
+            do {
+                List<JournalEntry> entries = readBatch(conn, from);
+                read = entries.size();
+                if (read > 0) {
+                    from = entries.get(read - 1).sequence;
+                }
+                applyBatch(entries, logPrefix);
+            } while (read >= batchSize);
+            appliedSequences.headSet(lastSequence - overlap, true).clear();
+        }
+        catch (SQLException | RuntimeException ex) {
+            errorCount.incrementAndGet();
+            log.warn("{}Exception polling invalidation journal: {}", logPrefix, ex.getMessage());
+        }
+    }
+
+    // The rows already in the overlap window below the starting sequence are as old as the rest, so they are marked as
+    // applied rather than being taken for late commits on the next poll
+    private void markWindowApplied(Connection conn) throws SQLException {
+        long from = lastSequence - overlap;
+        int read;
+        do {
+            List<JournalEntry> entries = readBatch(conn, from);
+            read = entries.size();
+            for (JournalEntry entry : entries) {
+                if (entry.sequence <= lastSequence) {
+                    appliedSequences.add(entry.sequence);
+                }
+                from = entry.sequence;
+            }
+        } while (read >= batchSize && from < lastSequence);
+    }
+
+    // Reads the whole batch before applying any of it, so the journal statement is not held open during refreshes
+    private List<JournalEntry> readBatch(Connection conn, long from) throws SQLException {
+        List<JournalEntry> entries = new ArrayList<>();
+        try (PreparedStatement ps = conn.prepareStatement(pollSql)) {
+            ps.setInt(1, batchSize);
+            ps.setLong(2, from);
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    entries.add(new JournalEntry(rs.getLong(1), rs.getString(2), rs.getString(3)));
+                }
+            }
+        }
+        return entries;
+    }
+
+    // Applied one at a time on the polling thread. In REFRESH mode each entry is a lookup, so this keeps a bulk change
+    // to a single connection rather than a surge of concurrent queries
+    private void applyBatch(List<JournalEntry> entries, String logPrefix) {
+        int applied = 0;
+        for (JournalEntry entry : entries) {
+            if (!appliedSequences.add(entry.sequence)) {
+                continue;
+            }
+            apply(entry.queryId, entry.key, logPrefix);
+            applied++;
+            if (entry.sequence > lastSequence) {
+                lastSequence = entry.sequence;
+            }
+        }
+        if (applied > 0) {
+            log.debug("{}Applied {} invalidations, now at sequence {}", logPrefix, applied, lastSequence);
+        }
+    }
+
+    // A null or * query ID applies the key to every query
+    private void apply(String queryId, String key, String logPrefix) {
+        if (key == null) {
+            return;
+        }
+        if (queryId == null || queryId.equals("*")) {
+            for (DatabaseQuery dq : queryMap.values()) {
+                dq.invalidate(key, refresh);
+            }
+        }
+        else {
+            DatabaseQuery dq = queryMap.get(queryId);
+            if (dq == null) {
+                log.trace("{}Ignoring invalidation for unknown query {}", logPrefix, queryId);
+                return;
+            }
+            dq.invalidate(key, refresh);
+        }
+        appliedCount.incrementAndGet();
+    }
+
+    private static class JournalEntry {
+
+        private final long sequence;
+        private final String queryId;
+        private final String key;
+
+        private JournalEntry(long sequence, String queryId, String key) {
+            this.sequence = sequence;
+            this.queryId = queryId;
+            this.key = key;
+        }
+    }
+
+    void collectMetrics(Map<String, Serializable> metricMap) {
+        metricMap.put("invalidation.last-sequence", lastSequence);
+        metricMap.put("invalidation.applied", appliedCount.get());
+        metricMap.put("invalidation.errors", errorCount.get());
+    }
+
+}
@@ -0,0 +1,104 @@
+/*
+ *   management-sql-plugin - KeyNormaliser.java
+ *
+ *   Copyright (c) 2022-2023, Slinky Software
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as
+ *   published by the Free Software Foundation, either version 3 of the
+ *   License, or (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   A copy of the GNU Affero General Public License is located in the 
+ *   AGPL-3.0.md supplied with the source code.
+ *
+ */
+package com.slinkytoybox.gcloud.managementsqlplugin;
+
+import java.util.Locale;
+
+/**
+ * A step applied to the incoming lookup ID before it is parsed, so that the same record requested in different formats
+ * produces the same key (and so the same cache entry and an index seek in the database). A query lists the steps it
+ * uses in order with {@code query.<ID>.key.normalisers}.
+ *
+ * @author Michael Junek (michael@juneks.com.au)
+ */
+enum KeyNormaliser {
+
+    TRIM {
+        @Override
+        String apply(String value, String countryCode) {
+            return value.strip();
+        }
+    },
+    DIGITS_ONLY {
+        @Override
+        String apply(String value, String countryCode) {
+            return digitsOf(value);
+        }
+    },
+    // Phone numbers in international (+61412345678), 00 prefixed or national (0412 345 678) format
+    E164 {
+        @Override
+        String apply(String value, String countryCode) {
+            String trimmed = value.strip();
+            String digits = digitsOf(trimmed);
+            if (!trimmed.startsWith("+")) {
+                if (digits.startsWith("00")) {
+                    digits = digits.substring(2);
+                }
+                else if (digits.startsWith("0")) {
+                    if (countryCode == null) {
+                        throw new IllegalArgumentException("Lookup ID is a national number and no default country code is configured");
+                    }
+                    digits = countryCode + digits.substring(1);
+                }
+            }
+            if (digits.isEmpty() || digits.length() > 15) {
+                throw new IllegalArgumentException("Lookup ID is not a valid E.164 number");
+            }
+            return "+" + digits;
+        }
+    },
+    CASE_FOLD {
+        @Override
+        String apply(String value, String countryCode) {
+            return value.toLowerCase(Locale.ROOT);
+        }
+    };
+
+    /**
+     * @param value the lookup ID so far
+     * @param countryCode the default country code for national phone numbers, or null if there is none
+     * @return the normalised lookup ID
+     * @throws IllegalArgumentException if the value cannot be normalised
+     */
+    abstract String apply(String value, String countryCode);
+
+    /**
+     * Parses a configured normaliser name such as {@code digits-only}
+     *
+     * @param name
+     * @return
+     */
+    static KeyNormaliser fromName(String name) {
+        return valueOf(name.strip().toUpperCase(Locale.ROOT).replace('-', '_'));
+    }
+
+    private static String digitsOf(String value) {
+        StringBuilder sb = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c >= '0' && c <= '9') {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+}
@@ -0,0 +1,70 @@
+/*
+ *   management-sql-plugin - LatencyTracker.java
+ *
+ *   Copyright (c) 2022-2023, Slinky Software
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as
+ *   published by the Free Software Foundation, either version 3 of the
+ *   License, or (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   A copy of the GNU Affero General Public License is located in the 
+ *   AGPL-3.0.md supplied with the source code.
+ *
+ */
+package com.slinkytoybox.gcloud.managementsqlplugin;
+
+import java.util.Arrays;
+
+/**
+ * Keeps a sliding window of recent lookup durations and periodically recomputes a percentile from it. Readers only ever
+ * see the last computed value, so asking for the percentile on the request path is a single volatile read.
+ *
+ * @author Michael Junek (michael@juneks.com.au)
+ */
+class LatencyTracker {
+
+    private static final int WINDOW_SIZE = 256;
+    private static final int MIN_SAMPLES = 20;
+    private static final int RECOMPUTE_INTERVAL = 32;
+
+    private final int percentile;
+    private final long[] samples = new long[WINDOW_SIZE];
+    private int sampleCount = 0;
+    private int nextSlot = 0;
+    private int samplesSinceCompute = 0;
+
+    private volatile long percentileNanos = -1;
+
+    LatencyTracker(int percentile) {
+        this.percentile = percentile;
+    }
+
+    synchronized void record(long durationNanos) {
+        samples[nextSlot] = durationNanos;
+        nextSlot = (nextSlot + 1) % WINDOW_SIZE;
+        if (sampleCount < WINDOW_SIZE) {
+            sampleCount++;
+        }
+        if (++samplesSinceCompute >= RECOMPUTE_INTERVAL && sampleCount >= MIN_SAMPLES) {
+            long[] sorted = Arrays.copyOf(samples, sampleCount);
+            Arrays.sort(sorted);
+            int index = Math.min(sampleCount - 1, (int) Math.ceil(sampleCount * percentile / 100.0) - 1);
+            percentileNanos = sorted[Math.max(0, index)];
+            samplesSinceCompute = 0;
+        }
+    }
+
+    /**
+     * @return the last computed percentile in nanoseconds, or -1 if not enough samples have been seen yet
+     */
+    long getPercentileNanos() {
+        return percentileNanos;
+    }
+
+}
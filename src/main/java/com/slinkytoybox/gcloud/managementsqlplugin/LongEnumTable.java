@@ -0,0 +1,120 @@
+/*
+ *   management-sql-plugin - LongEnumTable.java
+ *
+ *   Copyright (c) 2022-2023, Slinky Software
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as
+ *   published by the Free Software Foundation, either version 3 of the
+ *   License, or (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   A copy of the GNU Affero General Public License is located in the 
+ *   AGPL-3.0.md supplied with the source code.
+ *
+ */
+package com.slinkytoybox.gcloud.managementsqlplugin;
+
+import java.util.Map;
+
+/**
+ * Read-only mapping from a numeric column value to its enumeration text, compiled once from the configuration. Small
+ * key ranges are stored as an array indexed by value, anything else in an open-addressing hash table, so a lookup never
+ * boxes or formats the value.
+ *
+ * @author Michael Junek (michael@juneks.com.au)
+ */
+abstract class LongEnumTable {
+
+    // Largest key range that will be stored as a dense array, and how sparse that array may be
+    private static final long MAX_DENSE_RANGE = 4096;
+    private static final long DENSE_FILL_FACTOR = 4;
+
+    /**
+     * @param key
+     * @return the mapped value, or null if the key is not mapped
+     */
+    abstract String get(long key);
+
+    static LongEnumTable compile(Map<Long, String> mappings) {
+        if (mappings.isEmpty()) {
+            return null;
+        }
+        long min = Long.MAX_VALUE;
+        long max = Long.MIN_VALUE;
+        for (long key : mappings.keySet()) {
+            min = Math.min(min, key);
+            max = Math.max(max, key);
+        }
+        // The difference is compared as unsigned, as it can overflow a signed long
+        long span = max - min;
+        if (Long.compareUnsigned(span, Math.min(MAX_DENSE_RANGE, Math.max(64, mappings.size() * DENSE_FILL_FACTOR))) < 0) {
+            return new Dense(min, (int) span + 1, mappings);
+        }
+        return new OpenAddressing(mappings);
+    }
+
+    private static class Dense extends LongEnumTable {
+
+        private final long offset;
+        private final String[] values;
+
+        private Dense(long offset, int range, Map<Long, String> mappings) {
+            this.offset = offset;
+            this.values = new String[range];
+            mappings.forEach((key, value) -> values[(int) (key - offset)] = value);
+        }
+
+        @Override
+        String get(long key) {
+            long index = key - offset;
+            return index >= 0 && index < values.length ? values[(int) index] : null;
+        }
+    }
+
+    private static class OpenAddressing extends LongEnumTable {
+
+        private final long[] keys;
+        private final String[] values;
+        private final int mask;
+
+        private OpenAddressing(Map<Long, String> mappings) {
+            // Keep the table at most half full so probe sequences stay short
+            int capacity = Integer.highestOneBit(Math.max(2, mappings.size() * 2 - 1)) << 1;
+            keys = new long[capacity];
+            values = new String[capacity];
+            mask = capacity - 1;
+            mappings.forEach((key, value) -> {
+                int slot = slot(key);
+                while (values[slot] != null) {
+                    slot = (slot + 1) & mask;
+                }
+                keys[slot] = key;
+                values[slot] = value;
+            });
+        }
+
+        private int slot(long key) {
+            long hash = key * 0x9E3779B97F4A7C15L;
+            return (int) (hash ^ (hash >>> 32)) & mask;
+        }
+
+        @Override
+        String get(long key) {
+            int slot = slot(key);
+            String value;
+            while ((value = values[slot]) != null) {
+                if (keys[slot] == key) {
+                    return value;
+                }
+                slot = (slot + 1) & mask;
+            }
+            return null;
+        }
+    }
+
+}
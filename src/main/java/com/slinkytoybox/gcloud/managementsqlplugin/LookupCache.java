@@ -0,0 +1,145 @@
+/*
+ *   management-sql-plugin - LookupCache.java
+ *
+ *   Copyright (c) 2022-2023, Slinky Software
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as
+ *   published by the Free Software Foundation, either version 3 of the
+ *   License, or (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   A copy of the GNU Affero General Public License is located in the 
+ *   AGPL-3.0.md supplied with the source code.
+ *
+ */
+package com.slinkytoybox.gcloud.managementsqlplugin;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicReference;
+import lombok.ToString;
+
+/**
+ * Bounded least-recently-used store of successful lookup results for a single query. Expiry policy (fresh, stale while
+ * revalidating, stale on error) is decided by the owning {@link DatabaseQuery} from the entry age.
+ *
+ * Results are stored with the time their lookup started. A result whose lookup started before the key was last
+ * invalidated read the record before it changed, so it is refused rather than put back over the invalidation.
+ *
+ * @author Michael Junek (michael@juneks.com.au)
+ */
+@ToString(exclude = {"entries", "invalidations"})
+class LookupCache {
+
+    private final int maxEntries;
+
+    private final Map<String, CacheEntry> entries;
+
+    // When each key was last invalidated, oldest first. Bounded like the entries; when a key is dropped from here, its
+    // time becomes the cut-off for every key, which can only refuse more results than necessary, never fewer
+    private final Map<String, Long> invalidations;
+    private Long forgottenInvalidationNanos;
+
+    LookupCache(int maxEntries) {
+        this.maxEntries = maxEntries;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CacheEntry> eldest) {
+                return size() > LookupCache.this.maxEntries;
+            }
+        };
+        this.invalidations = new LinkedHashMap<>(16, 0.75f, false) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+                if (size() > LookupCache.this.maxEntries) {
+                    forgottenInvalidationNanos = eldest.getValue();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    synchronized CacheEntry get(String key) {
+        return entries.get(key);
+    }
+
+    /**
+     * Stores the result of a lookup, unless the key has been invalidated since the lookup started
+     *
+     * @param key
+     * @param result
+     * @param lookupStartNanos {@link System#nanoTime()} taken before the lookup read the database
+     * @return false if the result was refused as out of date
+     */
+    synchronized boolean put(String key, LookupResult result, long lookupStartNanos) {
+        Long invalidatedAt = invalidations.getOrDefault(key, forgottenInvalidationNanos);
+        if (invalidatedAt != null && lookupStartNanos - invalidatedAt <= 0) {
+            return false;
+        }
+        entries.put(key, new CacheEntry(result, System.nanoTime()));
+        return true;
+    }
+
+    synchronized void remove(String key) {
+        entries.remove(key);
+    }
+
+    /**
+     * Removes the key after the record changed, and refuses the results of any lookups of it already in progress
+     *
+     * @param key
+     * @return true if the key was cached
+     */
+    synchronized boolean invalidate(String key) {
+        // Removed first so that the key moves to the newest end
+        invalidations.remove(key);
+        invalidations.put(key, System.nanoTime());
+        return entries.remove(key) != null;
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+
+    static class CacheEntry {
+
+        private final LookupResult result;
+        private final long loadedAtNanos;
+        // The database lookup of this record in progress, if any, shared by every caller that needs one
+        private final AtomicReference<CompletableFuture<LookupResult>> lookup = new AtomicReference<>();
+
+        private CacheEntry(LookupResult result, long loadedAtNanos) {
+            this.result = result;
+            this.loadedAtNanos = loadedAtNanos;
+        }
+
+        LookupResult getResult() {
+            return result;
+        }
+
+        long getAgeNanos(long nowNanos) {
+            return nowNanos - loadedAtNanos;
+        }
+
+        // Makes the given lookup the one in progress and returns null, or returns the lookup already in progress
+        CompletableFuture<LookupResult> startLookup(CompletableFuture<LookupResult> future) {
+            return lookup.compareAndExchange(null, future);
+        }
+
+        void finishLookup(CompletableFuture<LookupResult> future) {
+            lookup.compareAndSet(future, null);
+        }
+
+        boolean isLookupInProgress() {
+            return lookup.get() != null;
+        }
+    }
+
+}
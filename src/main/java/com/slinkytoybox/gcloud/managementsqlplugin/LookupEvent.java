@@ -0,0 +1,73 @@
+/*
+ *   management-sql-plugin - LookupEvent.java
+ *
+ *   Copyright (c) 2022-2023, Slinky Software
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as
+ *   published by the Free Software Foundation, either version 3 of the
+ *   License, or (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   A copy of the GNU Affero General Public License is located in the 
+ *   AGPL-3.0.md supplied with the source code.
+ *
+ */
+package com.slinkytoybox.gcloud.managementsqlplugin;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * Java Flight Recorder event emitted for every lookup attempt, with the time spent in each phase. The event is disabled
+ * unless a recording enables it, in which case it costs little more than the timestamps already taken.
+ *
+ * @author Michael Junek (michael@juneks.com.au)
+ */
+@Name("com.slinkytoybox.gcloud.managementsqlplugin.Lookup")
+@Label("SQL Plugin Lookup")
+@Category({"Platform Connector", "Management SQL Plugin"})
+@Description("Database lookup performed by the management SQL plugin")
+@StackTrace(false)
+class LookupEvent extends Event {
+
+    @Label("Query Id")
+    String queryId;
+
+    @Label("Outcome")
+    String outcome;
+
+    @Label("Hedge")
+    @Description("True if this was the hedged copy of a lookup")
+    boolean hedge;
+
+    @Label("Connection Acquire Time")
+    @Timespan(Timespan.NANOSECONDS)
+    long acquireTime;
+
+    @Label("Prepare Time")
+    @Timespan(Timespan.NANOSECONDS)
+    long prepareTime;
+
+    @Label("Execute Time")
+    @Timespan(Timespan.NANOSECONDS)
+    long executeTime;
+
+    @Label("Fetch Time")
+    @Timespan(Timespan.NANOSECONDS)
+    long fetchTime;
+
+    @Label("Map Time")
+    @Timespan(Timespan.NANOSECONDS)
+    long mapTime;
+
+}
@@ -0,0 +1,121 @@
+/*
+ *   management-sql-plugin - LookupResult.java
+ *
+ *   Copyright (c) 2022-2023, Slinky Software
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as
+ *   published by the Free Software Foundation, either version 3 of the
+ *   License, or (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   A copy of the GNU Affero General Public License is located in the 
+ *   AGPL-3.0.md supplied with the source code.
+ *
+ */
+package com.slinkytoybox.gcloud.managementsqlplugin;
+
+import com.slinkytoybox.gcloud.platformconnectorplugin.response.PluginResponse.ResponseStatus;
+import com.slinkytoybox.gcloud.platformconnectorplugin.response.ReadResponse;
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.Map;
+import lombok.ToString;
+
+/**
+ * Outcome of a single database lookup, independent of the response object it is eventually copied into. This allows
+ * several lookups for the same request to run concurrently and only the winning one to be returned.
+ *
+ * @author Michael Junek (michael@juneks.com.au)
+ */
+@ToString
+class LookupResult {
+
+    private final ResponseStatus status;
+    private final String errorMessage;
+    private final String objectId;
+    private final Map<String, Serializable> objectDetails;
+
+    private LookupResult(ResponseStatus status, String errorMessage, String objectId, Map<String, Serializable> objectDetails) {
+        this.status = status;
+        this.errorMessage = errorMessage;
+        this.objectId = objectId;
+        this.objectDetails = objectDetails;
+    }
+
+    ResponseStatus getStatus() {
+        return status;
+    }
+
+    String getErrorMessage() {
+        return errorMessage;
+    }
+
+    static LookupResult success(String objectId, Map<String, Serializable> objectDetails) {
+        return new LookupResult(ResponseStatus.SUCCESS, null, objectId, objectDetails);
+    }
+
+    static LookupResult error(ResponseStatus status, String errorMessage) {
+        return new LookupResult(status, errorMessage, null, null);
+    }
+
+    static LookupResult failure(String errorMessage) {
+        return error(ResponseStatus.FAILURE, errorMessage);
+    }
+
+    /**
+     * Creates a copy of this result with a flag added to the object details showing that it was served from cache after
+     * it should have been refreshed.
+     *
+     * @param staleField name of the field to add to the object details
+     * @return
+     */
+    LookupResult asStale(String staleField) {
+        Map<String, Serializable> staleDetails = new HashMap<>(objectDetails);
+        staleDetails.put(staleField, Boolean.TRUE);
+        return new LookupResult(status, errorMessage, objectId, staleDetails);
+    }
+
+    /**
+     * Creates a copy of this result with only the given fields in the object details. The stale flag is kept if it is
+     * present. Anything other than a success is returned unchanged.
+     *
+     * @param fields the fields to keep
+     * @param staleField name of the stale flag field
+     * @return
+     */
+    LookupResult project(CompactDetailsMap.Schema fields, String staleField) {
+        if (status != ResponseStatus.SUCCESS) {
+            return this;
+        }
+        Serializable[] values = new Serializable[fields.size()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = objectDetails.get(fields.keyAt(i));
+        }
+        LookupResult projected = success(objectId, new CompactDetailsMap(fields, values));
+        return objectDetails.containsKey(staleField) ? projected.asStale(staleField) : projected;
+    }
+
+    boolean isFailure() {
+        return status == ResponseStatus.FAILURE;
+    }
+
+    ReadResponse applyTo(ReadResponse response) {
+        response.setStatus(status);
+        if (errorMessage != null) {
+            response.setErrorMessage(errorMessage);
+        }
+        if (objectId != null) {
+            response.setObjectId(objectId);
+        }
+        if (objectDetails != null) {
+            response.setObjectDetails(objectDetails);
+        }
+        return response;
+    }
+
+}
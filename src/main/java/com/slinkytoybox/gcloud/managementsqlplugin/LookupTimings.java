@@ -0,0 +1,105 @@
+/*
+ *   management-sql-plugin - LookupTimings.java
+ *
+ *   Copyright (c) 2022-2023, Slinky Software
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as
+ *   published by the Free Software Foundation, either version 3 of the
+ *   License, or (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   A copy of the GNU Affero General Public License is located in the 
+ *   AGPL-3.0.md supplied with the source code.
+ *
+ */
+package com.slinkytoybox.gcloud.managementsqlplugin;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Records how long each phase of a single lookup attempt took. Each call to {@link #endPhase(Phase)} charges the time
+ * since the previous call (or since creation) to the given phase, and {@link #finish()} charges whatever is left to the
+ * phase that was in progress.
+ *
+ * @author Michael Junek (michael@juneks.com.au)
+ */
+class LookupTimings {
+
+    private final long startNanos;
+    private long phaseStartNanos;
+    private final long[] phaseNanos = new long[Phase.values().length];
+    // The phase in progress since the last endPhase call
+    private Phase openPhase = Phase.ACQUIRE;
+
+    LookupTimings() {
+        startNanos = System.nanoTime();
+        phaseStartNanos = startNanos;
+    }
+
+    void endPhase(Phase phase) {
+        long now = System.nanoTime();
+        phaseNanos[phase.ordinal()] += now - phaseStartNanos;
+        phaseStartNanos = now;
+        openPhase = phase.next();
+    }
+
+    /**
+     * Charges the time since the last {@link #endPhase(Phase)} call to the phase that was in progress. Called once the
+     * attempt is over, so that an attempt that failed or was cancelled part way through (for example a statement that
+     * timed out while executing) is measured in full rather than up to the last phase it completed.
+     */
+    void finish() {
+        endPhase(openPhase);
+    }
+
+    long getPhaseNanos(Phase phase) {
+        return phaseNanos[phase.ordinal()];
+    }
+
+    long getTotalNanos() {
+        return phaseStartNanos - startNanos;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("total=").append(TimeUnit.NANOSECONDS.toMicros(getTotalNanos())).append("us");
+        for (Phase phase : Phase.values()) {
+            sb.append(", ").append(phase.name().toLowerCase()).append('=').append(TimeUnit.NANOSECONDS.toMicros(phaseNanos[phase.ordinal()])).append("us");
+        }
+        return sb.toString();
+    }
+
+    enum Phase {
+        // Borrowing a connection from the pool
+        ACQUIRE,
+        // Preparing the statement and binding the parameter
+        PREPARE,
+        // Executing the statement until the first result is available
+        EXECUTE,
+        // Moving through the result set rows
+        FETCH,
+        // Reading the columns and building the response details
+        MAP;
+
+        // The phase that follows this one. Rows are fetched and mapped alternately
+        Phase next() {
+            return switch (this) {
+                case ACQUIRE ->
+                    PREPARE;
+                case PREPARE ->
+                    EXECUTE;
+                case EXECUTE, MAP ->
+                    FETCH;
+                case FETCH ->
+                    MAP;
+            };
+        }
+    }
+
+}
@@ -26,20 +26,29 @@ import com.slinkytoybox.gcloud.platformconnectorplugin.request.*;
 import com.slinkytoybox.gcloud.platformconnectorplugin.response.*;
 import com.slinkytoybox.gcloud.platformconnectorplugin.response.PluginResponse.ResponseStatus;
 import com.zaxxer.hikari.HikariDataSource;
+import com.zaxxer.hikari.util.DriverDataSource;
 import java.io.IOException;
 import java.io.Serializable;
 import java.sql.Connection;
 import java.sql.SQLException;
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
-import java.util.stream.StreamSupport;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 import javax.annotation.PreDestroy;
 import lombok.extern.slf4j.Slf4j;
-import org.springframework.core.env.EnumerablePropertySource;
 import org.springframework.stereotype.Component;
 
 /**
@@ -61,13 +70,32 @@ public class ManagementSQLPlugin implements PlatformConnectorPlugin {
     private boolean doneConfig = false;
 
     private HikariDataSource poolSource;
+    private HikariDataSource replicaSource;
+
+    private ExecutorService lookupExecutor;
+    private HedgeBudget hedgeBudget;
+    private SlowQueryLog slowQueryLog;
+
+    // Optional change journal used to invalidate cached results across the cluster. Null if not configured
+    private InvalidationJournal invalidationJournal;
+    private long invalidationPollIntervalMs;
+
+    // Runs the database startup (and its retries) off the container thread
+    private ScheduledExecutorService backgroundScheduler;
+    private volatile boolean databaseReady = false;
 
     private final List<PluginOperation> supportedOperations = new ArrayList<>();
-    private final List<HealthMetric> metrics = new ArrayList<>();
-    private final Map<String, HealthStatus> componentStatusMap = new HashMap<>();
-    private final HealthStatus overallStatus = new HealthStatus();
+    // Same contents as supportedOperations, used for the per-request check
+    private final EnumSet<PluginOperation> supportedOperationSet = EnumSet.noneOf(PluginOperation.class);
+    // Health state is updated from any thread and pushed to the container in the background
+    private final HealthPublisher healthPublisher = new HealthPublisher(this::setHealth);
     private ContainerInterface container = null;
     private final Map<String, DatabaseQuery> queryMap = new HashMap<>();
+    private final Map<String, AdmissionController> admissionMap = new HashMap<>();
+
+    // Read requests are counted and logged as a periodic summary at INFO, rather than individually
+    private final LongAdder readRequestCount = new LongAdder();
+    private final LongAdder readRejectedCount = new LongAdder();
 
     // Custom Setup Routine
     private void pluginSetup() throws PluginException {
@@ -75,25 +103,55 @@ public class ManagementSQLPlugin implements PlatformConnectorPlugin {
         log.trace("{}Entering Method", logPrefix);
 
         supportedOperations.add(PluginOperation.READ);
+        supportedOperationSet.addAll(supportedOperations);
+        healthPublisher.start(Long.valueOf(config.getProperty("cloud.health.publish-interval-ms", "1000")));
         setOverallHealth(HealthState.WARNING, "Platform initialising");
 
         log.info("{}Setting up plugin {}", logPrefix, pluginId);
-        connectToMssql();
+        createConnectionPools();
+        createLookupExecutor();
         configureQueries();
+        createInvalidationJournal();
+        startDatabaseInBackground();
+        scheduleRequestSummary();
+    }
+
+    private void createLookupExecutor() {
+        final String logPrefix = "createLookupExecutor() - ";
+        log.trace("{}Entering Method", logPrefix);
+        int hedgeBudgetPercent = Integer.valueOf(config.getProperty("cloud.database.hedge.budget-percent", "10"));
+        int hedgeMaxBurst = Integer.valueOf(config.getProperty("cloud.database.hedge.max-burst", "10"));
+        log.debug("{}Hedge budget: {}% of lookups, burst of {}", logPrefix, hedgeBudgetPercent, hedgeMaxBurst);
+        hedgeBudget = new HedgeBudget(hedgeBudgetPercent, hedgeMaxBurst);
+
+        long slowQueryThresholdMs = Long.valueOf(config.getProperty("cloud.database.slow-query.threshold-ms", "0"));
+        slowQueryLog = new SlowQueryLog(slowQueryThresholdMs);
+        log.debug("{}Slow query log: {}", logPrefix, slowQueryLog);
+
+        // Bounded, so that lookups stuck waiting for connections during a failover cannot keep adding threads. A lookup
+        // that finds every thread busy is done on the calling thread or answered from the cache instead of queueing
+        int poolConnections = poolSource.getMaximumPoolSize() + (replicaSource != null ? replicaSource.getMaximumPoolSize() : 0);
+        int lookupThreads = Integer.valueOf(config.getProperty("cloud.database.lookup-threads", String.valueOf(poolConnections * 2)));
+        log.debug("{}Lookup threads: {}", logPrefix, lookupThreads);
+        AtomicInteger threadNumber = new AtomicInteger();
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(lookupThreads, lookupThreads, 60, TimeUnit.SECONDS, new SynchronousQueue<>(), r -> {
+            Thread t = new Thread(r, "SQL-Plugin-Lookup-" + threadNumber.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        executor.allowCoreThreadTimeOut(true);
+        lookupExecutor = executor;
     }
 
-    private void connectToMssql() throws PluginException {
-        final String logPrefix = "connectToMssql() - ";
+    // Creates (but does not connect) the connection pools. Connecting is left to startDatabase()
+    private void createConnectionPools() throws PluginException {
+        final String logPrefix = "createConnectionPools() - ";
         log.trace("{}Entering Method", logPrefix);
-        log.info("{}Connecting to MSSQL Database", logPrefix);
+        log.info("{}Configuring MSSQL Database connection pools", logPrefix);
 
         String jdbcUrl = config.getProperty("cloud.database.url", "NOT_SET");
         String jdbcUser = config.getProperty("cloud.database.username", "NOT_SET");
         String jdbcPassword = config.getProperty("cloud.database.password", "NOT_SET");
-        Integer poolMinSize = Integer.valueOf(config.getProperty("cloud.database.pool.min-size", "3"));
-        String poolTestQuery = config.getProperty("cloud.database.pool.test-query", "SELECT 1");
-        Long poolIdleTimeout = Long.valueOf(config.getProperty("cloud.database.pool.idle-timeout", "300000"));
-        Long poolKeepaliveTime = Long.valueOf(config.getProperty("cloud.database.pool.keepalive-time", "60000"));
 
         if (jdbcUrl.equalsIgnoreCase("NOT_SET") || jdbcUser.equalsIgnoreCase("NOT_SET") || jdbcPassword.equalsIgnoreCase("NOT_SET")) {
             log.error("{}JDBC Connection paramaters 'cloud.database.url|username|password' are not defined correctly", logPrefix);
@@ -102,8 +160,6 @@ public class ManagementSQLPlugin implements PlatformConnectorPlugin {
             throw new PluginException("Required MSSQL configuration parameters were not found");
         }
 
-        log.info("{}Starting database connection pool", logPrefix);
-
         log.debug("{}Connection Parameters:\nURL:  {}\nUser:  {}", logPrefix, jdbcUrl, jdbcUser);
 
         String decryptedPassword;
@@ -114,77 +170,224 @@ public class ManagementSQLPlugin implements PlatformConnectorPlugin {
 
         log.debug("{}Getting data source properties", logPrefix);
         Properties dsProps = new Properties();
-        StreamSupport.stream(config.entrySet().spliterator(), false)
-                .filter(ps -> ps instanceof EnumerablePropertySource)
-                .map(ps -> ((EnumerablePropertySource) ps).getPropertyNames())
-                .flatMap(Arrays::stream)
-                .distinct()
+        config.stringPropertyNames().stream()
                 .filter(prop -> (prop.startsWith("cloud.database.properties.")))
                 .forEach(prop -> dsProps.setProperty(prop.replace("cloud.database.properties.", ""), config.getProperty(prop)));
         dsProps.setProperty("applicationName", pluginId);
 
+        // Keep prepared statement handles cached on each connection, rather than sp_prepexec / sp_unprepare on every lookup
+        long queryCount = config.stringPropertyNames().stream().filter(key -> key.matches("^query\\.[^.]+\\.sql$")).count();
+        String statementCacheSize = config.getProperty("cloud.database.statement-cache-size", String.valueOf(Math.max(10, queryCount * 2)));
+        dsProps.putIfAbsent("disableStatementPooling", "false");
+        dsProps.putIfAbsent("statementPoolingCacheSize", statementCacheSize);
+        dsProps.putIfAbsent("enablePrepareOnFirstPreparedStatementCall", "true");
+        // Stream large values from the server as they are read, rather than buffering the whole row in memory
+        dsProps.putIfAbsent("responseBuffering", "adaptive");
+        // Strings are sent as VARCHAR unless bound with setNString, so a VARCHAR key column is not implicitly converted
+        dsProps.putIfAbsent("sendStringParametersAsUnicode", "false");
+        log.debug("{}Statement pooling cache size: {}", logPrefix, dsProps.getProperty("statementPoolingCacheSize"));
+
         log.debug("{}Creating Connection Pool", logPrefix);
-        poolSource.setJdbcUrl(jdbcUrl);
-        poolSource.setUsername(jdbcUser);
-        poolSource.setPassword(decryptedPassword);
-        poolSource.setDataSourceProperties(dsProps);
-        poolSource.setMinimumIdle(poolMinSize);
+        poolSource = createPool("SQL-Plugin-DB", jdbcUrl, jdbcUser, decryptedPassword, dsProps);
+
+        String replicaUrl = config.getProperty("cloud.database.replica.url");
+        if (replicaUrl != null && !replicaUrl.isBlank()) {
+            log.info("{}Creating read replica connection pool", logPrefix);
+            log.debug("{}Replica URL: {}", logPrefix, replicaUrl);
+            Properties replicaProps = new Properties();
+            replicaProps.putAll(dsProps);
+            replicaProps.setProperty("applicationIntent", "ReadOnly");
+            replicaSource = createPool("SQL-Plugin-DB-Replica", replicaUrl, jdbcUser, decryptedPassword, replicaProps);
+        }
 
-        poolSource.setConnectionTestQuery(poolTestQuery);
-        poolSource.setPoolName("SQL-Plugin-DB");
-        poolSource.setIdleTimeout(poolIdleTimeout);
-        poolSource.setKeepaliveTime(poolKeepaliveTime);
+        log.trace("{}Leaving Method", logPrefix);
+    }
 
-        log.trace("{}Set pool parameters: {}", logPrefix, poolSource);
+    private void createInvalidationJournal() throws PluginException {
+        final String logPrefix = "createInvalidationJournal() - ";
+        log.trace("{}Entering Method", logPrefix);
+        if (!config.containsKey("cloud.database.invalidation.table")) {
+            log.debug("{}No invalidation journal configured", logPrefix);
+            return;
+        }
+        try {
+            invalidationJournal = new InvalidationJournal(config, poolSource, queryMap);
+            invalidationPollIntervalMs = Long.valueOf(config.getProperty("cloud.database.invalidation.poll-interval-ms", "5000"));
+        }
+        catch (IllegalArgumentException ex) {
+            log.error("{}Could not configure invalidation journal: {}", logPrefix, ex.getMessage());
+            throw new PluginException("Could not configure invalidation journal -- " + ex.getMessage());
+        }
+    }
 
+    private void startDatabaseInBackground() {
+        final String logPrefix = "startDatabaseInBackground() - ";
+        log.trace("{}Entering Method", logPrefix);
+        long retryInitialMs = Long.valueOf(config.getProperty("cloud.database.startup.retry-initial-ms", "1000"));
+        setComponentHealth("mssqlDatabase", new HealthStatus().setHealthState(HealthState.WARNING).setHealthComment("Connecting to database"));
+
+        AtomicInteger threadNumber = new AtomicInteger();
+        backgroundScheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "SQL-Plugin-Background-" + threadNumber.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        backgroundScheduler.execute(() -> startDatabase(retryInitialMs));
+    }
+
+    private void scheduleRequestSummary() {
+        final String logPrefix = "scheduleRequestSummary() - ";
+        log.trace("{}Entering Method", logPrefix);
+        long summaryIntervalMs = Long.valueOf(config.getProperty("cloud.logging.request-summary-interval-ms", "60000"));
+        if (summaryIntervalMs > 0) {
+            backgroundScheduler.scheduleAtFixedRate(() -> logRequestSummary(summaryIntervalMs), summaryIntervalMs, summaryIntervalMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void logRequestSummary(long summaryIntervalMs) {
+        final String logPrefix = "logRequestSummary() - ";
+        long requests = readRequestCount.sumThenReset();
+        long rejected = readRejectedCount.sumThenReset();
+        if (requests > 0) {
+            log.info("{}Processed {} read requests in the last {}s, {} rejected by admission control", logPrefix, requests, summaryIntervalMs / 1000, rejected);
+        }
+    }
+
+    // Starts the pool and checks the database responds. On failure it is rescheduled with exponential backoff, and
+    // lookups are refused until it succeeds.
+    private void startDatabase(long retryDelayMs) {
+        final String logPrefix = "startDatabase() - ";
+        log.trace("{}Entering Method", logPrefix);
         log.info("{}Starting database pool", logPrefix);
 
         try (Connection conn = poolSource.getConnection()) {
             log.debug("{}Got SQL connection from pool. Testing", logPrefix);
-            if (conn.isValid(5)) {
-                log.info("{}Successfully connected to database", logPrefix);
-            }
-            else {
-                log.error("{}Database did not respond within 5 seconds", logPrefix);
-                throw new IllegalStateException("Could not start database - database did not respond within 5 seconds");
+            if (!conn.isValid(5)) {
+                throw new IllegalStateException("Database did not respond within 5 seconds");
             }
+            log.info("{}Successfully connected to database", logPrefix);
+        }
+        catch (SQLException | RuntimeException ex) {
+            long retryMaxMs = Long.valueOf(config.getProperty("cloud.database.startup.retry-max-ms", "60000"));
+            log.error("{}Could not start database, retrying in {}ms: {}", logPrefix, retryDelayMs, ex.getMessage());
+            setComponentHealth("mssqlDatabase", new HealthStatus().setHealthState(HealthState.WARNING).setHealthComment("Could not connect to database -- " + ex.getMessage()));
+            backgroundScheduler.schedule(() -> startDatabase(Math.min(retryMaxMs, retryDelayMs * 2)), retryDelayMs, TimeUnit.MILLISECONDS);
+            return;
         }
-        catch (SQLException ex) {
-            log.error("{}SQL Exception encountered getting connection from pool!", logPrefix);
-            throw new IllegalStateException("Could not start database!", ex);
+
+        databaseReady = true;
+
+        if (invalidationJournal != null) {
+            log.info("{}Polling invalidation journal every {}ms", logPrefix, invalidationPollIntervalMs);
+            // The first poll only records the current end of the journal
+            invalidationJournal.poll();
+            backgroundScheduler.scheduleWithFixedDelay(invalidationJournal::poll, invalidationPollIntervalMs, invalidationPollIntervalMs, TimeUnit.MILLISECONDS);
         }
 
         log.info("{}Plugin initialisation complete", logPrefix);
         setOverallHealth(HealthState.HEALTHY, null);
         setComponentHealth("mssqlDatabase", new HealthStatus().setHealthState(HealthState.HEALTHY));
+    }
+
+    private HikariDataSource createPool(String poolName, String jdbcUrl, String jdbcUser, String jdbcPassword, Properties dsProps) {
+        final String logPrefix = "createPool() - ";
+        log.trace("{}Entering Method", logPrefix);
+
+        Integer poolMinSize = Integer.valueOf(config.getProperty("cloud.database.pool.min-size", "3"));
+        String poolTestQuery = config.getProperty("cloud.database.pool.test-query", "SELECT 1");
+        Long poolIdleTimeout = Long.valueOf(config.getProperty("cloud.database.pool.idle-timeout", "300000"));
+        Long poolKeepaliveTime = Long.valueOf(config.getProperty("cloud.database.pool.keepalive-time", "60000"));
+
+        HikariDataSource pool = new HikariDataSource();
+        // Every new physical connection is warmed up before the pool hands it out, including those that replace
+        // connections retired after their maximum lifetime
+        pool.setDataSource(new WarmUpDataSource(new DriverDataSource(jdbcUrl, null, dsProps, jdbcUser, jdbcPassword), this::warmUpConnection));
+        pool.setMinimumIdle(poolMinSize);
 
+        pool.setConnectionTestQuery(poolTestQuery);
+        pool.setPoolName(poolName);
+        pool.setIdleTimeout(poolIdleTimeout);
+        pool.setKeepaliveTime(poolKeepaliveTime);
+
+        log.trace("{}Set pool parameters: {}", logPrefix, pool);
+        return pool;
     }
 
     private void configureQueries() {
         final String logPrefix = "configureQueries - ";
         log.trace("{}Entering Method", logPrefix);
         log.info("{}Configuring queries defined in file", logPrefix);
+        int admissionMaxConcurrent = Integer.valueOf(config.getProperty("cloud.database.admission.max-concurrent", "0"));
+        int admissionNormalPercent = Integer.valueOf(config.getProperty("cloud.database.admission.normal-priority-percent", "90"));
+        int admissionLowPercent = Integer.valueOf(config.getProperty("cloud.database.admission.low-priority-percent", "50"));
+        AdmissionController.SharedCapacity sharedCapacity = new AdmissionController.SharedCapacity(admissionMaxConcurrent, admissionNormalPercent, admissionLowPercent);
+        log.debug("{}Shared admission capacity: {}", logPrefix, sharedCapacity);
+
+        // Queries only parse configuration, so they are all set up in parallel
+        Map<String, CompletableFuture<DatabaseQuery>> pendingQueries = new HashMap<>();
         for (String key : config.stringPropertyNames()) {
             if (key.matches("^query\\.[^.]+\\.sql$")) {
                 log.trace("{}Started processing configuration {}", logPrefix, key);
                 String[] parts = key.split("\\.");
                 String queryName = parts[1];
                 log.info("{}Found query {} - starting to process", logPrefix, queryName);
-                DatabaseQuery dq = new DatabaseQuery(config, queryName, poolSource);
-                log.debug("{}Adding query to available list", logPrefix);
-                queryMap.put(queryName, dq);
+                pendingQueries.put(queryName, CompletableFuture.supplyAsync(() -> new DatabaseQuery(config, queryName, poolSource, replicaSource, lookupExecutor, hedgeBudget, slowQueryLog)));
             }
         }
+        for (Map.Entry<String, CompletableFuture<DatabaseQuery>> pending : pendingQueries.entrySet()) {
+            String queryName = pending.getKey();
+            DatabaseQuery dq;
+            try {
+                dq = pending.getValue().join();
+            }
+            catch (CompletionException ex) {
+                log.error("{}Exception setting up query {}", logPrefix, queryName);
+                throw ex.getCause() instanceof RuntimeException rex ? rex : ex;
+            }
+            log.debug("{}Adding query {} to available list", logPrefix, queryName);
+            queryMap.put(queryName, dq);
+            AdmissionController admission = new AdmissionController(config, queryName, sharedCapacity);
+            dq.setLookupLatencyListener(admission::recordLookupLatency);
+            admissionMap.put(queryName, admission);
+        }
         log.trace("{}Leaving Method", logPrefix);
     }
 
+    // Prepares each query on a new physical connection, so the first real lookup on it is not the slow one
+    private void warmUpConnection(Connection conn) {
+        final String logPrefix = "warmUpConnection() - ";
+        log.trace("{}Entering Method", logPrefix);
+        int warmed = 0;
+        for (DatabaseQuery dq : queryMap.values()) {
+            if (dq.warmUp(conn)) {
+                warmed++;
+            }
+        }
+        log.debug("{}Completed {} query warm-ups on new connection", logPrefix, warmed);
+    }
+
     // Custom destruction routine
     private void pluginDestroy() {
         final String logPrefix = "pluginDestroy() - ";
         log.trace("{}Entering Method", logPrefix);
+        if (backgroundScheduler != null) {
+            log.info("{}Stopping background scheduler", logPrefix);
+            backgroundScheduler.shutdownNow();
+        }
+        if (lookupExecutor != null) {
+            log.info("{}Stopping lookup executor", logPrefix);
+            lookupExecutor.shutdownNow();
+        }
+        if (slowQueryLog != null) {
+            slowQueryLog.shutdown();
+        }
         try {
             log.info("{}Stopping connection pool", logPrefix);
             poolSource.close();
+            if (replicaSource != null) {
+                log.info("{}Stopping replica connection pool", logPrefix);
+                replicaSource.close();
+            }
         }
         catch (Exception ex) {
             log.error("{}Exception when stopping or destroying connection pool", ex);
@@ -233,30 +436,80 @@ public class ManagementSQLPlugin implements PlatformConnectorPlugin {
 
         ReadResponse response = new ReadResponse(); // Create new response object
         response.setRequestId(req.getRequestId());
+        readRequestCount.increment();
+
+        // Look up the parameters once
+        Map<String, String[]> requestParameters = req.getRequestParameters();
+        String[] queryIdParam = requestParameters == null ? null : requestParameters.get("queryId");
+        String queryId = queryIdParam == null || queryIdParam.length == 0 ? null : queryIdParam[0];
+        DatabaseQuery dq = queryId == null ? null : queryMap.get(queryId);
+        String objectId = req.getObjectId();
+        String[] fieldsParam = requestParameters == null ? null : requestParameters.get("fields");
+        String fields = fieldsParam == null || fieldsParam.length == 0 ? null : String.join(",", fieldsParam);
+
+        // Normalised and parsed into the query's key type before anything else is done with it
+        Object lookupKey = null;
+        String keyError = null;
+        if (dq != null && objectId != null && !objectId.isEmpty()) {
+            try {
+                lookupKey = dq.parseKey(objectId);
+            }
+            catch (IllegalArgumentException ex) {
+                keyError = ex.getMessage();
+            }
+        }
 
-        if (req.getRequestParameters() == null || !req.getRequestParameters().containsKey("queryId")) {
+        if (queryId == null) {
             log.error("{}Query identifier was not specified", logPrefix);
             response.setErrorMessage("Query identifier was not specified");
             response.setStatus(ResponseStatus.FAILURE);
         }
-        else if (!queryMap.containsKey(req.getRequestParameters().get("queryId")[0])) {
+        else if (dq == null) {
             log.error("{}Query identifier is not recognised", logPrefix);
             response.setErrorMessage("Query identifier is not recognised");
             response.setStatus(ResponseStatus.FAILURE);
 
         }
 
-        else if (req.getObjectId() == null || req.getObjectId().isEmpty()) {
+        else if (objectId == null || objectId.isEmpty()) {
             log.error("{}Ad-Hoc searches are not available in this plugin", logPrefix);
             response.setErrorMessage("Ad-Hoc searches are not available in this plugin");
             response.setStatus(ResponseStatus.FAILURE);
         }
+        else if (keyError != null) {
+            if (log.isDebugEnabled()) {
+                log.debug("{}Lookup ID {} for query {} is not valid: {}", logPrefix, objectId, queryId, keyError);
+            }
+            response.setErrorMessage("Lookup ID is not valid -- " + keyError);
+            response.setStatus(ResponseStatus.FAILURE);
+        }
+        else if (!databaseReady) {
+            log.warn("{}Database is not yet available", logPrefix);
+            response.setErrorMessage("Database is not yet available");
+            response.setStatus(ResponseStatus.FAILURE);
+        }
         else {
-            String queryId = req.getRequestParameters().get("queryId")[0];
-            String objectId = req.getObjectId();
-            DatabaseQuery dq = queryMap.get(queryId);
-            log.info("{}Issuing read request for record {} to query {}", logPrefix, objectId, queryId);
-            response = dq.performQuery(response, objectId);
+            AdmissionController admission = admissionMap.get(queryId);
+            String rejection = admission.tryAdmit();
+            if (rejection != null) {
+                readRejectedCount.increment();
+                if (log.isDebugEnabled()) {
+                    log.debug("{}Request for record {} to query {} rejected: {}", logPrefix, objectId, queryId, rejection);
+                }
+                response.setErrorMessage("Request rejected by admission control -- " + rejection);
+                response.setStatus(ResponseStatus.FAILURE);
+            }
+            else {
+                if (log.isDebugEnabled()) {
+                    log.debug("{}Issuing read request for record {} to query {}", logPrefix, objectId, queryId);
+                }
+                try {
+                    response = dq.performQuery(response, lookupKey, fields);
+                }
+                finally {
+                    admission.release();
+                }
+            }
         }
 
         log.debug("{}Returning response: {}", logPrefix, response);
@@ -280,56 +533,48 @@ public class ManagementSQLPlugin implements PlatformConnectorPlugin {
 
     private void setMetric(String metricName, Serializable metricValue) {
         final String logPrefix = "setMetric() - ";
-        log.trace("{}Entering Method", logPrefix);
-
-        log.info("{}Setting Health Metric {} to value {}", logPrefix, metricName, metricValue);
-        for (HealthMetric metric : metrics) {
-            if (metric.getMetricName().equalsIgnoreCase(metricName)) {
-                log.trace("{}Updated existing metric", logPrefix);
-                metric.setMetricValue(metricValue);
-                return;
-            }
-        }
-
-        log.trace("{}Created new metric", logPrefix);
-        HealthMetric hm = new HealthMetric().setMetricName(metricName)
-                .setMetricValue(metricValue);
-        metrics.add(hm);
-        setHealth();
-        log.trace("{}Leaving Method", logPrefix);
-
+        log.trace("{}Setting Health Metric {} to value {}", logPrefix, metricName, metricValue);
+        healthPublisher.setMetric(metricName, metricValue);
     }
 
     private void setComponentHealth(String componentName, HealthStatus componentStaus) {
         final String logPrefix = "setComponentHealth() - ";
         log.trace("{}Entering Method", logPrefix);
-
         log.info("{}Setting component {} to status {}", logPrefix, componentName, componentStaus);
-        if (componentStatusMap.containsKey(componentName)) {
-            log.trace("{}Updated existing component", logPrefix);
-            componentStatusMap.replace(componentName, componentStaus);
-
-        }
-        else {
-            log.trace("{}Creating new component", logPrefix);
-            componentStatusMap.put(componentName, componentStaus);
-        }
-        setHealth();
+        healthPublisher.setComponentHealth(componentName, componentStaus);
         log.trace("{}Leaving Method", logPrefix);
 
     }
 
     private void setOverallHealth(HealthState state, String statusMessage) {
-        final String logPrefix = "setComponentHealth() - ";
+        final String logPrefix = "setOverallHealth() - ";
         log.trace("{}Entering Method", logPrefix);
         log.info("{}Setting overall health to status {} with message '{}'", logPrefix, state, statusMessage);
-        overallStatus.setHealthState(state);
-        overallStatus.setHealthComment(statusMessage);
-        setHealth();
+        healthPublisher.setOverallHealth(state, statusMessage);
         log.trace("{}Leaving Method", logPrefix);
 
     }
 
+    // Copies the per-query lookup and admission counters into the health metrics
+    private void refreshQueryMetrics() {
+        final String logPrefix = "refreshQueryMetrics() - ";
+        log.trace("{}Entering Method", logPrefix);
+        Map<String, Serializable> queryMetrics = new HashMap<>();
+        for (DatabaseQuery dq : queryMap.values()) {
+            dq.collectMetrics(queryMetrics);
+        }
+        for (AdmissionController admission : admissionMap.values()) {
+            admission.collectMetrics(queryMetrics);
+        }
+        if (slowQueryLog != null) {
+            queryMetrics.put("slow-query-log.dropped", slowQueryLog.getDroppedCount());
+        }
+        if (invalidationJournal != null) {
+            invalidationJournal.collectMetrics(queryMetrics);
+        }
+        queryMetrics.forEach(this::setMetric);
+    }
+
     // Called by the container to get the health statuses
     // This should return the COMPLETE health picture.
     @Override
@@ -337,12 +582,9 @@ public class ManagementSQLPlugin implements PlatformConnectorPlugin {
         final String logPrefix = "getPluginHealth() - ";
         log.trace("{}Entering Method", logPrefix);
         log.info("{}Getting plugin health", logPrefix);
+        refreshQueryMetrics();
 
-        // TODO: Modify code here to do the actual health checks and create metrics etc.
-        HealthResult response = new HealthResult()
-                .setOverallStatus(overallStatus) // this is the most important thing to return
-                .setComponentStatus(componentStatusMap)
-                .setMetrics(metrics);                 // metrics are optional
+        HealthResult response = healthPublisher.snapshot();
 
         // END actual work code
         log.debug("{}Returning response: {}", logPrefix, response);
@@ -350,25 +592,20 @@ public class ManagementSQLPlugin implements PlatformConnectorPlugin {
 
     }
 
-    /// Example fucntion to show how to "push" health changes to the container
+    // Pushes the health to the container. Only called from the health publisher thread
     // Note that this is the COMPLETE health picture including metrics, and not just the deltas
-    private void setHealth() {
+    private boolean setHealth(HealthResult response) {
         final String logPrefix = "setHealth() - ";
         log.trace("{}Entering Method", logPrefix);
 
         if (container == null) {
             log.warn("{}Container interface is not yet set. Not doing callback", logPrefix);
-            return;
+            return false;
         }
-        // lets create some health details
-        HealthResult response = new HealthResult()
-                .setOverallStatus(overallStatus) // this is the most important thing to return
-                .setComponentStatus(componentStatusMap)
-                .setMetrics(metrics);
-
         log.debug("{}About to send the plugin health to container application", logPrefix);
         container.setPluginHealth(pluginId, response);
         log.trace("{}Leaving method", logPrefix);
+        return true;
     }
 
     /* 
@@ -409,6 +646,8 @@ public class ManagementSQLPlugin implements PlatformConnectorPlugin {
         final String logPrefix = "destroy() - ";
         log.trace("{}Entering Method", logPrefix);
         log.info("{}Shutdown tasks for plugin running", logPrefix);
+        // Stop background pushes first so they cannot overwrite the shutdown status
+        healthPublisher.shutdown();
         HealthResult response = new HealthResult().setOverallStatus(new HealthStatus().setHealthState(HealthState.FAILED).setHealthComment("Plugin shutting down"));
         log.info("{}About to send the plugin health to container application", logPrefix);
         container.setPluginHealth(pluginId, response);
@@ -426,7 +665,7 @@ public class ManagementSQLPlugin implements PlatformConnectorPlugin {
 
         if (request instanceof CreateRequest createRequest) {
             log.debug("{} - Create Request", logPrefix);
-            if (supportedOperations.contains(PluginOperation.CREATE)) {
+            if (supportedOperationSet.contains(PluginOperation.CREATE)) {
                 return doWork(createRequest);
             }
             else {
@@ -436,7 +675,7 @@ public class ManagementSQLPlugin implements PlatformConnectorPlugin {
         }
         if (request instanceof UpdateRequest updateRequest) {
             log.debug("{} - Update Request", logPrefix);
-            if (supportedOperations.contains(PluginOperation.UPDATE)) {
+            if (supportedOperationSet.contains(PluginOperation.UPDATE)) {
                 return doWork(updateRequest);
             }
             else {
@@ -446,7 +685,7 @@ public class ManagementSQLPlugin implements PlatformConnectorPlugin {
         }
         if (request instanceof ReadRequest readRequest) {
             log.debug("{} - Read Request", logPrefix);
-            if (supportedOperations.contains(PluginOperation.READ)) {
+            if (supportedOperationSet.contains(PluginOperation.READ)) {
                 return doWork(readRequest);
             }
             else {
@@ -456,7 +695,7 @@ public class ManagementSQLPlugin implements PlatformConnectorPlugin {
         }
         if (request instanceof DeleteRequest deleteRequest) {
             log.debug("{} - Delete Request", logPrefix);
-            if (supportedOperations.contains(PluginOperation.DELETE)) {
+            if (supportedOperationSet.contains(PluginOperation.DELETE)) {
                 return doWork(deleteRequest);
             }
             else {
@@ -0,0 +1,80 @@
+/*
+ *   management-sql-plugin - SlowQueryLog.java
+ *
+ *   Copyright (c) 2022-2023, Slinky Software
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as
+ *   published by the Free Software Foundation, either version 3 of the
+ *   License, or (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   A copy of the GNU Affero General Public License is located in the 
+ *   AGPL-3.0.md supplied with the source code.
+ *
+ */
+package com.slinkytoybox.gcloud.managementsqlplugin;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import lombok.ToString;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Logs lookups slower than a threshold, with their phase breakdown. Entries are written by a single background thread
+ * from a bounded queue so that a slow log appender can never hold up a lookup; if the queue is full, entries are
+ * dropped and counted.
+ *
+ * The entries are written to this class's own logger so they can be routed to a separate file.
+ *
+ * @author Michael Junek (michael@juneks.com.au)
+ */
+@Slf4j
+@ToString(exclude = {"writer"})
+class SlowQueryLog {
+
+    private static final int QUEUE_SIZE = 1000;
+
+    // Zero disables the log
+    private final long thresholdNanos;
+    private final ThreadPoolExecutor writer;
+    private final AtomicLong droppedCount = new AtomicLong();
+
+    SlowQueryLog(long thresholdMs) {
+        this.thresholdNanos = TimeUnit.MILLISECONDS.toNanos(thresholdMs);
+        if (thresholdMs > 0) {
+            writer = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(QUEUE_SIZE), r -> {
+                Thread t = new Thread(r, "SQL-Plugin-SlowQueryLog");
+                t.setDaemon(true);
+                return t;
+            }, (r, executor) -> droppedCount.incrementAndGet());
+        }
+        else {
+            writer = null;
+        }
+    }
+
+    void record(String queryId, String sqlId, String bindType, String outcome, boolean hedge, LookupTimings timings) {
+        if (writer == null || timings.getTotalNanos() < thresholdNanos) {
+            return;
+        }
+        writer.execute(() -> log.warn("Slow lookup: queryId={}, sqlId={}, bindType={}, outcome={}, hedge={}, {}", queryId, sqlId, bindType, outcome, hedge, timings));
+    }
+
+    long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    void shutdown() {
+        if (writer != null) {
+            writer.shutdown();
+        }
+    }
+
+}
@@ -0,0 +1,106 @@
+/*
+ *   management-sql-plugin - WarmUpDataSource.java
+ *
+ *   Copyright (c) 2022-2023, Slinky Software
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as
+ *   published by the Free Software Foundation, either version 3 of the
+ *   License, or (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   A copy of the GNU Affero General Public License is located in the 
+ *   AGPL-3.0.md supplied with the source code.
+ *
+ */
+package com.slinkytoybox.gcloud.managementsqlplugin;
+
+import java.io.PrintWriter;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.function.Consumer;
+import java.util.logging.Logger;
+import javax.sql.DataSource;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Data source given to the connection pool, which warms up every new physical connection before the pool hands it out.
+ * The pool replaces connections over time (after their maximum lifetime, or after an error), so warming only the
+ * connections open at startup would leave none warmed within the hour.
+ *
+ * @author Michael Junek (michael@juneks.com.au)
+ */
+@Slf4j
+class WarmUpDataSource implements DataSource {
+
+    private final DataSource delegate;
+    private final Consumer<Connection> warmer;
+
+    WarmUpDataSource(DataSource delegate, Consumer<Connection> warmer) {
+        this.delegate = delegate;
+        this.warmer = warmer;
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException {
+        return warmUp(delegate.getConnection());
+    }
+
+    @Override
+    public Connection getConnection(String username, String password) throws SQLException {
+        return warmUp(delegate.getConnection(username, password));
+    }
+
+    // Warm-up is only an optimisation, so a failure never stops the connection being used
+    private Connection warmUp(Connection conn) {
+        final String logPrefix = "warmUp() - ";
+        try {
+            warmer.accept(conn);
+        }
+        catch (RuntimeException ex) {
+            log.warn("{}Exception warming up new connection: {}", logPrefix, ex.getMessage());
+        }
+        return conn;
+    }
+
+    @Override
+    public PrintWriter getLogWriter() throws SQLException {
+        return delegate.getLogWriter();
+    }
+
+    @Override
+    public void setLogWriter(PrintWriter out) throws SQLException {
+        delegate.setLogWriter(out);
+    }
+
+    @Override
+    public void setLoginTimeout(int seconds) throws SQLException {
+        delegate.setLoginTimeout(seconds);
+    }
+
+    @Override
+    public int getLoginTimeout() throws SQLException {
+        return delegate.getLoginTimeout();
+    }
+
+    @Override
+    public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+        return delegate.getParentLogger();
+    }
+
+    @Override
+    public <T> T unwrap(Class<T> iface) throws SQLException {
+        return iface.isInstance(this) ? iface.cast(this) : delegate.unwrap(iface);
+    }
+
+    @Override
+    public boolean isWrapperFor(Class<?> iface) throws SQLException {
+        return iface.isInstance(this) || delegate.isWrapperFor(iface);
+    }
+
+}
@@ -0,0 +1,148 @@
+/*
+ *   management-sql-plugin - AdmissionControllerTest.java
+ *
+ *   Copyright (c) 2022-2023, Slinky Software
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as
+ *   published by the Free Software Foundation, either version 3 of the
+ *   License, or (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   A copy of the GNU Affero General Public License is located in the 
+ *   AGPL-3.0.md supplied with the source code.
+ *
+ */
+package com.slinkytoybox.gcloud.managementsqlplugin;
+
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks the concurrency limits, the adaptive limit and the rate limit of admission control.
+ *
+ * @author Michael Junek (michael@juneks.com.au)
+ */
+class AdmissionControllerTest {
+
+    private static final long SLOW = TimeUnit.MILLISECONDS.toNanos(500);
+    private static final long FAST = TimeUnit.MILLISECONDS.toNanos(5);
+
+    private static AdmissionController build(Properties config) {
+        return new AdmissionController(config, "account", new AdmissionController.SharedCapacity(0, 90, 50));
+    }
+
+    private static Properties adaptiveConfiguration() {
+        Properties config = new Properties();
+        config.setProperty("query.account.admission.max-concurrent", "20");
+        config.setProperty("query.account.admission.adaptive", "true");
+        config.setProperty("query.account.admission.min-concurrent", "2");
+        config.setProperty("query.account.admission.latency-target-ms", "100");
+        return config;
+    }
+
+    private static int limitOf(AdmissionController admission) {
+        Map<String, Serializable> metrics = new HashMap<>();
+        admission.collectMetrics(metrics);
+        return (Integer) metrics.get("query.account.concurrency-limit");
+    }
+
+    @Test
+    void shedsOverConcurrencyLimit() {
+        Properties config = new Properties();
+        config.setProperty("query.account.admission.max-concurrent", "2");
+        AdmissionController admission = build(config);
+        assertNull(admission.tryAdmit());
+        assertNull(admission.tryAdmit());
+        assertNotNull(admission.tryAdmit());
+        admission.release();
+        assertNull(admission.tryAdmit());
+    }
+
+    @Test
+    void spikeOfSlowLookupsDecreasesLimitOnce() {
+        AdmissionController admission = build(adaptiveConfiguration());
+        for (int i = 0; i < 20; i++) {
+            admission.recordLookupLatency(SLOW);
+        }
+        assertEquals(18, limitOf(admission));
+    }
+
+    @Test
+    void sustainedSlowLookupsDecreaseLimitToMinimum() {
+        AdmissionController admission = build(adaptiveConfiguration());
+        for (int i = 0; i < 1000; i++) {
+            admission.recordLookupLatency(SLOW);
+        }
+        assertEquals(2, limitOf(admission));
+    }
+
+    @Test
+    void fastLookupsRecoverLimitWithinWindows() {
+        AdmissionController admission = build(adaptiveConfiguration());
+        for (int i = 0; i < 20; i++) {
+            admission.recordLookupLatency(SLOW);
+        }
+        // Back from 18 to 20 in about two windows of 19 lookups
+        for (int i = 0; i < 40; i++) {
+            admission.recordLookupLatency(FAST);
+        }
+        assertEquals(20, limitOf(admission));
+        for (int i = 0; i < 1000; i++) {
+            admission.recordLookupLatency(FAST);
+        }
+        assertEquals(20, limitOf(admission));
+    }
+
+    @Test
+    void adaptiveLimitShedsLookups() {
+        AdmissionController admission = build(adaptiveConfiguration());
+        for (int i = 0; i < 20; i++) {
+            admission.recordLookupLatency(SLOW);
+        }
+        for (int i = 0; i < 18; i++) {
+            assertNull(admission.tryAdmit());
+        }
+        assertNotNull(admission.tryAdmit());
+    }
+
+    @Test
+    void rateLimitAllowsBurstThenRefills() throws InterruptedException {
+        Properties config = new Properties();
+        config.setProperty("query.account.admission.rate-per-second", "10");
+        config.setProperty("query.account.admission.burst", "2");
+        AdmissionController admission = build(config);
+        assertNull(admission.tryAdmit());
+        assertNull(admission.tryAdmit());
+        String rejection = admission.tryAdmit();
+        assertTrue(rejection != null && rejection.contains("Rate limit"), "rejection was " + rejection);
+        // One token every 100ms
+        Thread.sleep(150);
+        assertNull(admission.tryAdmit());
+    }
+
+    @Test
+    void sharedCapacityShedsLowPriorityFirst() {
+        AdmissionController.SharedCapacity shared = new AdmissionController.SharedCapacity(4, 75, 50);
+        assertTrue(shared.tryAcquire(AdmissionController.Priority.LOW));
+        assertTrue(shared.tryAcquire(AdmissionController.Priority.LOW));
+        assertTrue(!shared.tryAcquire(AdmissionController.Priority.LOW));
+        assertTrue(shared.tryAcquire(AdmissionController.Priority.NORMAL));
+        assertTrue(!shared.tryAcquire(AdmissionController.Priority.NORMAL));
+        assertTrue(shared.tryAcquire(AdmissionController.Priority.HIGH));
+        assertTrue(!shared.tryAcquire(AdmissionController.Priority.HIGH));
+    }
+
+}
@@ -0,0 +1,119 @@
+/*
+ *   management-sql-plugin - CompactDetailsMapTest.java
+ *
+ *   Copyright (c) 2022-2023, Slinky Software
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as
+ *   published by the Free Software Foundation, either version 3 of the
+ *   License, or (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   A copy of the GNU Affero General Public License is located in the 
+ *   AGPL-3.0.md supplied with the source code.
+ *
+ */
+package com.slinkytoybox.gcloud.managementsqlplugin;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks that the compact details map behaves as an ordinary map of its schema's fields.
+ *
+ * @author Michael Junek (michael@juneks.com.au)
+ */
+class CompactDetailsMapTest {
+
+    private static final CompactDetailsMap.Schema SCHEMA = new CompactDetailsMap.Schema(List.of("id", "name", "status"));
+
+    private static CompactDetailsMap details() {
+        return new CompactDetailsMap(SCHEMA, new Serializable[]{42L, "Alice", null});
+    }
+
+    @Test
+    void getsValuesByFieldName() {
+        CompactDetailsMap details = details();
+        assertEquals(3, details.size());
+        assertEquals(42L, details.get("id"));
+        assertEquals("Alice", details.get("name"));
+        assertNull(details.get("missing"));
+        assertFalse(details.containsKey("missing"));
+    }
+
+    @Test
+    void keepsFieldWithNullValue() {
+        CompactDetailsMap details = details();
+        assertNull(details.get("status"));
+        assertTrue(details.containsKey("status"));
+    }
+
+    @Test
+    void iteratesInSchemaOrder() {
+        List<String> keys = new ArrayList<>();
+        for (Map.Entry<String, Serializable> entry : details().entrySet()) {
+            keys.add(entry.getKey());
+        }
+        assertEquals(List.of("id", "name", "status"), keys);
+    }
+
+    @Test
+    void equalsHashMapWithSameEntries() {
+        Map<String, Serializable> expected = new HashMap<>();
+        expected.put("id", 42L);
+        expected.put("name", "Alice");
+        expected.put("status", null);
+        assertEquals(expected, details());
+        assertEquals(details(), expected);
+        assertEquals(expected.hashCode(), details().hashCode());
+    }
+
+    @Test
+    void isReadOnly() {
+        CompactDetailsMap details = details();
+        assertThrows(UnsupportedOperationException.class, () -> details.put("name", "Bob"));
+        assertThrows(UnsupportedOperationException.class, () -> details.entrySet().iterator().next().setValue("Bob"));
+    }
+
+    @Test
+    void survivesSerialization() throws IOException, ClassNotFoundException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(details());
+        }
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+            Object copy = in.readObject();
+            assertEquals(details(), copy);
+            assertEquals("Alice", ((CompactDetailsMap) copy).get("name"));
+        }
+    }
+
+    @Test
+    void rejectsValueCountNotMatchingSchema() {
+        assertThrows(IllegalArgumentException.class, () -> new CompactDetailsMap(SCHEMA, new Serializable[]{42L, "Alice"}));
+    }
+
+    @Test
+    void rejectsDuplicateFieldName() {
+        assertThrows(IllegalArgumentException.class, () -> new CompactDetailsMap.Schema(List.of("id", "name", "id")));
+    }
+
+}
@@ -0,0 +1,332 @@
+/*
+ *   management-sql-plugin - DatabaseQueryTest.java
+ *
+ *   Copyright (c) 2022-2023, Slinky Software
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as
+ *   published by the Free Software Foundation, either version 3 of the
+ *   License, or (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   A copy of the GNU Affero General Public License is located in the 
+ *   AGPL-3.0.md supplied with the source code.
+ *
+ */
+package com.slinkytoybox.gcloud.managementsqlplugin;
+
+import com.slinkytoybox.gcloud.platformconnectorplugin.response.ReadResponse;
+import com.zaxxer.hikari.HikariDataSource;
+import java.io.Serializable;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks that queries are built from configuration without needing a database.
+ *
+ * @author Michael Junek (michael@juneks.com.au)
+ */
+class DatabaseQueryTest {
+
+    private static final List<String> COLUMNS = List.of("ID", "NAME", "STATUS");
+
+    private static Properties minimalConfiguration() {
+        Properties config = new Properties();
+        config.setProperty("query.account.sql", "SELECT ID, NAME, STATUS FROM ACCOUNT WHERE ID=?");
+        config.setProperty("query.account.search-data-type", "NUMBER");
+        config.setProperty("query.account.column.ID.enabled", "true");
+        config.setProperty("query.account.column.ID.data-type", "NUMBER");
+        config.setProperty("query.account.column.NAME.enabled", "true");
+        config.setProperty("query.account.column.STATUS.enabled", "true");
+        return config;
+    }
+
+    // Records the outcome and timings of every lookup attempt, however long it took
+    private static SlowQueryLog recordingSlowQueryLog(List<String> outcomes, List<LookupTimings> timings) {
+        return new SlowQueryLog(0) {
+            @Override
+            void record(String queryId, String sqlId, String bindType, String outcome, boolean hedge, LookupTimings lookupTimings) {
+                outcomes.add(outcome);
+                timings.add(lookupTimings);
+            }
+        };
+    }
+
+    private static Map<String, Serializable> metricsOf(DatabaseQuery dq) {
+        Map<String, Serializable> metrics = new HashMap<>();
+        dq.collectMetrics(metrics);
+        return metrics;
+    }
+
+    private static DatabaseQuery build(Properties config) {
+        return new DatabaseQuery(config, "account", null, null, null, new HedgeBudget(10, 10), new SlowQueryLog(0));
+    }
+
+    @Test
+    void constructsFromMinimalConfiguration() {
+        assertNotNull(build(minimalConfiguration()));
+    }
+
+    @Test
+    void constructsWithConfiguredProjection() {
+        Properties config = minimalConfiguration();
+        config.setProperty("query.account.projection.summary.fields", "NAME,ID");
+        config.setProperty("query.account.projection.summary.sql", "SELECT ID, NAME FROM ACCOUNT WHERE ID=?");
+        DatabaseQuery dq = build(config);
+        DatabaseQuery.Projection projection = dq.getProjection(" ID, NAME", "test - ");
+        assertEquals("ID,NAME", projection.key);
+        assertEquals(2, projection.fieldSchema.size());
+        assertEquals("SELECT ID, NAME FROM ACCOUNT WHERE ID=?", projection.variant.sql);
+        // The same fields in any order share the configured projection
+        assertSame(projection, dq.getProjection("NAME,ID,NAME", "test - "));
+    }
+
+    @Test
+    void filtersProjectionWithoutSql() {
+        DatabaseQuery dq = build(minimalConfiguration());
+        DatabaseQuery.Projection projection = dq.getProjection("STATUS", "test - ");
+        assertEquals("STATUS", projection.key);
+        assertNull(projection.variant);
+    }
+
+    @Test
+    void generatesProjectionSql() {
+        Properties config = minimalConfiguration();
+        config.setProperty("query.account.projection.generate-sql", "true");
+        DatabaseQuery dq = build(config);
+        assertEquals("SELECT [STATUS] FROM (SELECT ID, NAME, STATUS FROM ACCOUNT WHERE ID=?) AS projected_q", dq.getProjection("STATUS", "test - ").variant.sql);
+    }
+
+    @Test
+    void allFieldsNeedNoProjection() {
+        DatabaseQuery dq = build(minimalConfiguration());
+        assertNull(dq.getProjection("STATUS,NAME,ID", "test - "));
+    }
+
+    @Test
+    void rejectsUnknownProjectionField() {
+        DatabaseQuery dq = build(minimalConfiguration());
+        assertThrows(IllegalArgumentException.class, () -> dq.getProjection("NAME,PASSWORD", "test - "));
+    }
+
+    @Test
+    void timesStatementThatFailsWhileExecuting() {
+        List<LookupTimings> recorded = new CopyOnWriteArrayList<>();
+        SlowQueryLog slowQueryLog = recordingSlowQueryLog(new CopyOnWriteArrayList<>(), recorded);
+        try (HikariDataSource pool = FakeJdbc.pool((name, args) -> {
+            if (name.equals("executeQuery")) {
+                Thread.sleep(200);
+                throw new SQLException("The query has timed out");
+            }
+            return null;
+        })) {
+            DatabaseQuery dq = new DatabaseQuery(minimalConfiguration(), "account", pool, null, null, new HedgeBudget(10, 10), slowQueryLog);
+            dq.performQuery(new ReadResponse(), 42L);
+        }
+        assertEquals(1, recorded.size());
+        long executeMs = TimeUnit.NANOSECONDS.toMillis(recorded.get(0).getPhaseNanos(LookupTimings.Phase.EXECUTE));
+        assertTrue(executeMs >= 200, "execute phase was " + executeMs + "ms");
+        assertTrue(recorded.get(0).getTotalNanos() >= TimeUnit.MILLISECONDS.toNanos(200));
+    }
+
+    @Test
+    void looksUpOnCallingThreadWhenLookupThreadsAreBusy() throws InterruptedException {
+        Properties config = minimalConfiguration();
+        config.setProperty("query.account.hedge.enabled", "true");
+        List<String> outcomes = new CopyOnWriteArrayList<>();
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS, new SynchronousQueue<>());
+        CountDownLatch release = new CountDownLatch(1);
+        executor.execute(() -> {
+            try {
+                release.await();
+            }
+            catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        try (HikariDataSource pool = FakeJdbc.pool((name, args) -> name.equals("executeQuery") ? FakeJdbc.row(COLUMNS, 42L, "Alice", "ACTIVE") : null)) {
+            DatabaseQuery dq = new DatabaseQuery(config, "account", pool, null, executor, new HedgeBudget(10, 10), recordingSlowQueryLog(outcomes, new CopyOnWriteArrayList<>()));
+            dq.performQuery(new ReadResponse(), 42L);
+            assertEquals(List.of("SUCCESS"), outcomes);
+            assertEquals(1L, metricsOf(dq).get("query.account.lookup-threads-busy"));
+        }
+        finally {
+            release.countDown();
+            executor.shutdown();
+        }
+    }
+
+    // Caches the record, lets it go stale, then starts two callers looking it up at the same time
+    private static List<Thread> lookUpStaleRecordTwice(DatabaseQuery dq) throws InterruptedException {
+        dq.performQuery(new ReadResponse(), 42L);
+        Thread.sleep(5);
+        List<Thread> callers = List.of(new Thread(() -> dq.performQuery(new ReadResponse(), 42L)), new Thread(() -> dq.performQuery(new ReadResponse(), 42L)));
+        callers.forEach(Thread::start);
+        return callers;
+    }
+
+    // Answers the first execution straight away and holds every later one until released
+    private static FakeJdbc.Handler heldAfterFirstLookup(AtomicInteger executions, CountDownLatch release) {
+        return (name, args) -> {
+            if (name.equals("executeQuery")) {
+                if (executions.incrementAndGet() > 1) {
+                    release.await();
+                }
+                return FakeJdbc.row(COLUMNS, 42L, "Alice", "ACTIVE");
+            }
+            return null;
+        };
+    }
+
+    private static Properties staleConfiguration(String deadlineMs) {
+        Properties config = minimalConfiguration();
+        config.setProperty("query.account.cache.ttl-ms", "1");
+        config.setProperty("query.account.cache.max-stale-ms", "60000");
+        config.setProperty("query.account.cache.stale-deadline-ms", deadlineMs);
+        return config;
+    }
+
+    @Test
+    void concurrentMissesWaitForTheLookupInProgress() throws InterruptedException {
+        AtomicInteger executions = new AtomicInteger();
+        CountDownLatch release = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try (HikariDataSource pool = FakeJdbc.pool(heldAfterFirstLookup(executions, release))) {
+            DatabaseQuery dq = new DatabaseQuery(staleConfiguration("5000"), "account", pool, null, executor, new HedgeBudget(10, 10), new SlowQueryLog(0));
+            List<Thread> callers = lookUpStaleRecordTwice(dq);
+            while (!Long.valueOf(1).equals(metricsOf(dq).get("query.account.shared-lookups"))) {
+                Thread.sleep(1);
+            }
+            release.countDown();
+            for (Thread caller : callers) {
+                caller.join();
+            }
+            Map<String, Serializable> metrics = metricsOf(dq);
+            assertEquals(2, executions.get());
+            assertEquals(0L, metrics.get("query.account.stale-on-error-serves"));
+            assertEquals(0L, metrics.get("query.account.stale-on-deadline-serves"));
+        }
+        finally {
+            release.countDown();
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    void servesStaleAfterDeadlineWithoutCountingAnError() throws InterruptedException {
+        AtomicInteger executions = new AtomicInteger();
+        CountDownLatch release = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try (HikariDataSource pool = FakeJdbc.pool(heldAfterFirstLookup(executions, release))) {
+            DatabaseQuery dq = new DatabaseQuery(staleConfiguration("50"), "account", pool, null, executor, new HedgeBudget(10, 10), new SlowQueryLog(0));
+            for (Thread caller : lookUpStaleRecordTwice(dq)) {
+                caller.join();
+            }
+            Map<String, Serializable> metrics = metricsOf(dq);
+            assertEquals(2, executions.get());
+            assertEquals(0L, metrics.get("query.account.stale-on-error-serves"));
+            assertEquals(2L, metrics.get("query.account.stale-on-deadline-serves"));
+        }
+        finally {
+            release.countDown();
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    void setsQueryTimeoutOnWarmUpOnly() {
+        Properties config = minimalConfiguration();
+        config.setProperty("query.account.warmup-id", "0");
+        config.setProperty("query.account.warmup-timeout-seconds", "3");
+        List<Object> timeouts = new CopyOnWriteArrayList<>();
+        FakeJdbc.Handler statement = (name, args) -> {
+            if (name.equals("setQueryTimeout")) {
+                timeouts.add(args[0]);
+            }
+            return name.equals("executeQuery") ? FakeJdbc.row(COLUMNS, 42L, "Alice", "ACTIVE") : null;
+        };
+        try (HikariDataSource pool = FakeJdbc.pool(statement)) {
+            DatabaseQuery dq = new DatabaseQuery(config, "account", pool, null, null, new HedgeBudget(10, 10), new SlowQueryLog(0));
+            assertTrue(dq.warmUp(FakeJdbc.connection(statement)));
+            assertEquals(List.of(3), timeouts);
+            dq.performQuery(new ReadResponse(), 42L);
+            assertEquals(List.of(3), timeouts);
+        }
+    }
+
+    @Test
+    void countsStatementReusePerConnection() {
+        Properties config = minimalConfiguration();
+        config.setProperty("query.account.warmup-id", "0");
+        Connection conn = FakeJdbc.connection((name, args) -> name.equals("executeQuery") ? FakeJdbc.row(COLUMNS, 0L, "Canary", "ACTIVE") : null);
+        DatabaseQuery dq = build(config);
+        dq.warmUp(conn);
+        dq.warmUp(conn);
+        dq.warmUp(FakeJdbc.connection((name, args) -> name.equals("executeQuery") ? FakeJdbc.row(COLUMNS, 0L, "Canary", "ACTIVE") : null));
+        dq.warmUp(conn);
+        assertEquals(50.0, metricsOf(dq).get("query.account.statement-reuse-rate"));
+    }
+
+    @Test
+    void rejectsMissingSql() {
+        Properties config = minimalConfiguration();
+        config.remove("query.account.sql");
+        assertThrows(IllegalArgumentException.class, () -> build(config));
+    }
+
+    @Test
+    void rejectsNegativeMaxLength() {
+        Properties config = minimalConfiguration();
+        config.setProperty("query.account.column.NAME.max-length", "-1");
+        assertThrows(IllegalArgumentException.class, () -> build(config));
+    }
+
+    @Test
+    void rejectsMaxLengthThatOverflows() {
+        Properties config = minimalConfiguration();
+        config.setProperty("query.account.column.NAME.max-length", String.valueOf(Integer.MAX_VALUE));
+        assertThrows(IllegalArgumentException.class, () -> build(config));
+    }
+
+    @Test
+    void normalisesNationalNumberWithDefaultCountryCode() {
+        Properties config = minimalConfiguration();
+        config.setProperty("query.account.search-data-type", "TEXT");
+        config.setProperty("query.account.key.normalisers", "e164");
+        config.setProperty("query.account.key.default-country-code", "61");
+        DatabaseQuery dq = build(config);
+        assertEquals("+61412345678", dq.parseKey("0412 345 678"));
+    }
+
+    @Test
+    void rejectsCountryCodeWithPlus() {
+        Properties config = minimalConfiguration();
+        config.setProperty("query.account.key.normalisers", "e164");
+        config.setProperty("query.account.key.default-country-code", "+61");
+        assertThrows(IllegalArgumentException.class, () -> build(config));
+    }
+
+}
@@ -0,0 +1,207 @@
+/*
+ *   management-sql-plugin - FakeJdbc.java
+ *
+ *   Copyright (c) 2022-2023, Slinky Software
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as
+ *   published by the Free Software Foundation, either version 3 of the
+ *   License, or (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   A copy of the GNU Affero General Public License is located in the 
+ *   AGPL-3.0.md supplied with the source code.
+ *
+ */
+package com.slinkytoybox.gcloud.managementsqlplugin;
+
+import com.zaxxer.hikari.HikariDataSource;
+import java.io.PrintWriter;
+import java.lang.reflect.Array;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.List;
+import java.util.logging.Logger;
+import javax.sql.DataSource;
+
+/**
+ * A JDBC driver made of proxies, with just enough behaviour for the pool and single row lookups. Any call that a handler
+ * does not answer returns the default value for its type.
+ *
+ * @author Michael Junek (michael@juneks.com.au)
+ */
+final class FakeJdbc {
+
+    private FakeJdbc() {
+    }
+
+    // Answers a call on a fake JDBC object. Returning null gives the default value for the return type
+    interface Handler {
+
+        Object invoke(String name, Object[] args) throws Exception;
+    }
+
+    /**
+     * Creates a pool whose connections send every prepared statement call to the given handler
+     *
+     * @param statement
+     * @return
+     */
+    static HikariDataSource pool(Handler statement) {
+        HikariDataSource pool = new HikariDataSource();
+        pool.setDataSource(dataSource(statement));
+        pool.setPoolName("SQL-Plugin-Test");
+        pool.setMinimumIdle(1);
+        pool.setMaximumPoolSize(4);
+        return pool;
+    }
+
+    static DataSource dataSource(Handler statement) {
+        return new FakeDataSource(statement);
+    }
+
+    static Connection connection(Handler statement) {
+        Connection[] conn = new Connection[1];
+        conn[0] = fake(Connection.class, (name, args) -> switch (name) {
+            case "isValid" ->
+                true;
+            case "unwrap" ->
+                conn[0];
+            case "prepareStatement" ->
+                fake(PreparedStatement.class, statement);
+            default ->
+                null;
+        });
+        return conn[0];
+    }
+
+    /**
+     * A result set of one row, with the values in the same order as the column names
+     *
+     * @param columns
+     * @param values
+     * @return
+     */
+    static ResultSet row(List<String> columns, Object... values) {
+        return rows(columns, List.<Object[]>of(values));
+    }
+
+    /**
+     * A result set of the given rows, each with its values in the same order as the column names
+     *
+     * @param columns
+     * @param rows
+     * @return
+     */
+    static ResultSet rows(List<String> columns, List<Object[]> rows) {
+        int[] position = new int[1];
+        boolean[] wasNull = new boolean[1];
+        return fake(ResultSet.class, (name, args) -> {
+            switch (name) {
+                case "next" -> {
+                    return ++position[0] <= rows.size();
+                }
+                case "findColumn" -> {
+                    int index = columns.indexOf((String) args[0]);
+                    if (index < 0) {
+                        throw new SQLException("Invalid column name " + args[0]);
+                    }
+                    return index + 1;
+                }
+                case "wasNull" -> {
+                    return wasNull[0];
+                }
+                case "getLong", "getString", "getTimestamp", "getObject" -> {
+                    Object value = rows.get(position[0] - 1)[(Integer) args[0] - 1];
+                    wasNull[0] = value == null;
+                    return name.equals("getString") && value != null ? value.toString() : value;
+                }
+                default -> {
+                    return null;
+                }
+            }
+        });
+    }
+
+    static <T> T fake(Class<T> type, Handler handler) {
+        return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type}, (proxy, method, args) -> {
+            Object result;
+            switch (method.getName()) {
+                case "hashCode" ->
+                    result = System.identityHashCode(proxy);
+                case "equals" ->
+                    result = proxy == args[0];
+                case "toString" ->
+                    result = "Fake" + type.getSimpleName();
+                default ->
+                    result = handler.invoke(method.getName(), args);
+            }
+            if (result == null && method.getReturnType().isPrimitive() && method.getReturnType() != void.class) {
+                return Array.get(Array.newInstance(method.getReturnType(), 1), 0);
+            }
+            return result;
+        }));
+    }
+
+    private static final class FakeDataSource implements DataSource {
+
+        private final Handler statement;
+
+        private FakeDataSource(Handler statement) {
+            this.statement = statement;
+        }
+
+        @Override
+        public Connection getConnection() {
+            return connection(statement);
+        }
+
+        @Override
+        public Connection getConnection(String username, String password) {
+            return connection(statement);
+        }
+
+        @Override
+        public PrintWriter getLogWriter() {
+            return null;
+        }
+
+        @Override
+        public void setLogWriter(PrintWriter out) {
+        }
+
+        @Override
+        public void setLoginTimeout(int seconds) {
+        }
+
+        @Override
+        public int getLoginTimeout() {
+            return 0;
+        }
+
+        @Override
+        public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+            throw new SQLFeatureNotSupportedException();
+        }
+
+        @Override
+        public <T> T unwrap(Class<T> iface) throws SQLException {
+            throw new SQLException("Not a wrapper");
+        }
+
+        @Override
+        public boolean isWrapperFor(Class<?> iface) {
+            return false;
+        }
+
+    }
+
+}
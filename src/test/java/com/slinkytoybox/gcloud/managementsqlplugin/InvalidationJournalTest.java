@@ -0,0 +1,163 @@
+/*
+ *   management-sql-plugin - InvalidationJournalTest.java
+ *
+ *   Copyright (c) 2022-2023, Slinky Software
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as
+ *   published by the Free Software Foundation, either version 3 of the
+ *   License, or (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   A copy of the GNU Affero General Public License is located in the 
+ *   AGPL-3.0.md supplied with the source code.
+ *
+ */
+package com.slinkytoybox.gcloud.managementsqlplugin;
+
+import com.zaxxer.hikari.HikariDataSource;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks that the journal re-reads its overlap window for late commits without applying any row twice.
+ *
+ * @author Michael Junek (michael@juneks.com.au)
+ */
+class InvalidationJournalTest {
+
+    private static final List<String> COLUMNS = List.of("SEQ_ID", "QUERY_ID", "OBJECT_ID");
+
+    // A journal table held in memory. The poll statement returns the rows after its sequence parameter, and the
+    // statement without one returns the highest sequence
+    private static final class Journal implements FakeJdbc.Handler {
+
+        private final List<Object[]> rows = new ArrayList<>();
+        private Long from;
+        private int batchSize;
+
+        void append(long sequence) {
+            rows.add(new Object[]{sequence, "account", Long.toString(sequence)});
+        }
+
+        @Override
+        public Object invoke(String name, Object[] args) {
+            switch (name) {
+                case "setInt" ->
+                    batchSize = (Integer) args[1];
+                case "setLong" ->
+                    from = (Long) args[1];
+                case "executeQuery" -> {
+                    if (from == null) {
+                        return FakeJdbc.row(List.of("MAX"), rows.stream().mapToLong(row -> (Long) row[0]).max().orElse(0));
+                    }
+                    long after = from;
+                    from = null;
+                    return FakeJdbc.rows(COLUMNS, rows.stream().filter(row -> (Long) row[0] > after).sorted(Comparator.comparing(row -> (Long) row[0])).limit(batchSize).toList());
+                }
+                default -> {
+                }
+            }
+            return null;
+        }
+    }
+
+    private static Properties configuration(String overlap, String batchSize) {
+        Properties config = new Properties();
+        config.setProperty("query.account.sql", "SELECT ID, NAME FROM ACCOUNT WHERE ID=?");
+        config.setProperty("query.account.search-data-type", "NUMBER");
+        config.setProperty("query.account.column.ID.enabled", "true");
+        config.setProperty("cloud.database.invalidation.table", "CACHE_JOURNAL");
+        config.setProperty("cloud.database.invalidation.overlap", overlap);
+        config.setProperty("cloud.database.invalidation.batch-size", batchSize);
+        return config;
+    }
+
+    private static InvalidationJournal journalOf(Properties config, HikariDataSource pool) {
+        DatabaseQuery dq = new DatabaseQuery(config, "account", null, null, null, new HedgeBudget(10, 10), new SlowQueryLog(0));
+        return new InvalidationJournal(config, pool, Map.of("account", dq));
+    }
+
+    private static Map<String, Serializable> metricsOf(InvalidationJournal journal) {
+        Map<String, Serializable> metrics = new HashMap<>();
+        journal.collectMetrics(metrics);
+        return metrics;
+    }
+
+    @Test
+    void startsFromEndOfJournal() {
+        Journal table = new Journal();
+        table.append(1);
+        table.append(2);
+        try (HikariDataSource pool = FakeJdbc.pool(table)) {
+            InvalidationJournal journal = journalOf(configuration("100", "500"), pool);
+            journal.poll();
+            journal.poll();
+            assertEquals(2L, metricsOf(journal).get("invalidation.last-sequence"));
+            assertEquals(0L, metricsOf(journal).get("invalidation.applied"));
+        }
+    }
+
+    @Test
+    void appliesLateCommitInOverlapWindowOnce() {
+        Journal table = new Journal();
+        table.append(3);
+        try (HikariDataSource pool = FakeJdbc.pool(table)) {
+            InvalidationJournal journal = journalOf(configuration("100", "500"), pool);
+            journal.poll();
+            table.append(5);
+            journal.poll();
+            assertEquals(1L, metricsOf(journal).get("invalidation.applied"));
+            // Committed after 5, although its sequence is lower
+            table.append(4);
+            journal.poll();
+            journal.poll();
+            assertEquals(2L, metricsOf(journal).get("invalidation.applied"));
+            assertEquals(5L, metricsOf(journal).get("invalidation.last-sequence"));
+        }
+    }
+
+    @Test
+    void missesLateCommitWithoutOverlap() {
+        Journal table = new Journal();
+        table.append(3);
+        try (HikariDataSource pool = FakeJdbc.pool(table)) {
+            InvalidationJournal journal = journalOf(configuration("0", "500"), pool);
+            journal.poll();
+            table.append(5);
+            journal.poll();
+            table.append(4);
+            journal.poll();
+            assertEquals(1L, metricsOf(journal).get("invalidation.applied"));
+        }
+    }
+
+    @Test
+    void appliesEachRowOnceAcrossBatches() {
+        Journal table = new Journal();
+        try (HikariDataSource pool = FakeJdbc.pool(table)) {
+            InvalidationJournal journal = journalOf(configuration("100", "2"), pool);
+            journal.poll();
+            for (long sequence = 1; sequence <= 7; sequence++) {
+                table.append(sequence);
+            }
+            journal.poll();
+            assertEquals(7L, metricsOf(journal).get("invalidation.applied"));
+            journal.poll();
+            assertEquals(7L, metricsOf(journal).get("invalidation.applied"));
+            assertEquals(7L, metricsOf(journal).get("invalidation.last-sequence"));
+        }
+    }
+
+}
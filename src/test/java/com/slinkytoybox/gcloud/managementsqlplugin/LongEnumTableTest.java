@@ -0,0 +1,147 @@
+/*
+ *   management-sql-plugin - LongEnumTableTest.java
+ *
+ *   Copyright (c) 2022-2023, Slinky Software
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as
+ *   published by the Free Software Foundation, either version 3 of the
+ *   License, or (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   A copy of the GNU Affero General Public License is located in the 
+ *   AGPL-3.0.md supplied with the source code.
+ *
+ */
+package com.slinkytoybox.gcloud.managementsqlplugin;
+
+import java.util.HashMap;
+import java.util.Map;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks both layouts of the numeric enumeration table, and the keys at the edges of each.
+ *
+ * @author Michael Junek (michael@juneks.com.au)
+ */
+class LongEnumTableTest {
+
+    // Maps each key to its own decimal text
+    private static Map<Long, String> mappingsOf(long... keys) {
+        Map<Long, String> mappings = new HashMap<>();
+        for (long key : keys) {
+            mappings.put(key, Long.toString(key));
+        }
+        return mappings;
+    }
+
+    private static String layoutOf(LongEnumTable table) {
+        return table.getClass().getSimpleName();
+    }
+
+    // The same hash as the open-addressing table, to choose keys that collide in its last slot
+    private static int slot(long key, int mask) {
+        long hash = key * 0x9E3779B97F4A7C15L;
+        return (int) (hash ^ (hash >>> 32)) & mask;
+    }
+
+    @Test
+    void compilesNothingForNoMappings() {
+        assertNull(LongEnumTable.compile(Map.of()));
+    }
+
+    @Test
+    void storesSmallRangeDensely() {
+        LongEnumTable table = LongEnumTable.compile(mappingsOf(0, 63));
+        assertEquals("Dense", layoutOf(table));
+        assertEquals("0", table.get(0));
+        assertEquals("63", table.get(63));
+        assertNull(table.get(1));
+        assertNull(table.get(-1));
+        assertNull(table.get(64));
+    }
+
+    @Test
+    void storesWideRangeInHashTable() {
+        LongEnumTable table = LongEnumTable.compile(mappingsOf(0, 64));
+        assertEquals("OpenAddressing", layoutOf(table));
+        assertEquals("0", table.get(0));
+        assertEquals("64", table.get(64));
+        assertNull(table.get(1));
+    }
+
+    @Test
+    void allowsSparserDenseTableForMoreMappings() {
+        long[] keys = new long[1024];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = i * 4L;
+        }
+        keys[keys.length - 1] = 4095;
+        assertEquals("Dense", layoutOf(LongEnumTable.compile(mappingsOf(keys))));
+        keys[keys.length - 1] = 4096;
+        assertEquals("OpenAddressing", layoutOf(LongEnumTable.compile(mappingsOf(keys))));
+    }
+
+    @Test
+    void mapsNegativeKeys() {
+        LongEnumTable dense = LongEnumTable.compile(mappingsOf(-5, -1, 3));
+        assertEquals("Dense", layoutOf(dense));
+        assertEquals("-5", dense.get(-5));
+        assertEquals("-1", dense.get(-1));
+        assertNull(dense.get(-4));
+        assertNull(dense.get(-6));
+
+        LongEnumTable hashed = LongEnumTable.compile(mappingsOf(-1_000_000, -1, 3));
+        assertEquals("OpenAddressing", layoutOf(hashed));
+        assertEquals("-1000000", hashed.get(-1_000_000));
+        assertEquals("-1", hashed.get(-1));
+        assertNull(hashed.get(1_000_000));
+    }
+
+    @Test
+    void mapsRangeThatOverflowsSignedSpan() {
+        LongEnumTable table = LongEnumTable.compile(mappingsOf(Long.MIN_VALUE, Long.MAX_VALUE));
+        assertEquals("OpenAddressing", layoutOf(table));
+        assertEquals(Long.toString(Long.MIN_VALUE), table.get(Long.MIN_VALUE));
+        assertEquals(Long.toString(Long.MAX_VALUE), table.get(Long.MAX_VALUE));
+        assertNull(table.get(0));
+        assertNull(table.get(-1));
+    }
+
+    @Test
+    void denseTableAtTopOfRangeIgnoresKeysThatWrap() {
+        LongEnumTable table = LongEnumTable.compile(mappingsOf(Long.MAX_VALUE - 1, Long.MAX_VALUE));
+        assertEquals("Dense", layoutOf(table));
+        assertEquals(Long.toString(Long.MAX_VALUE), table.get(Long.MAX_VALUE));
+        assertNull(table.get(Long.MIN_VALUE));
+        assertNull(table.get(Long.MIN_VALUE + 1));
+    }
+
+    @Test
+    void probesWrapAroundEndOfHashTable() {
+        // Three mappings give a table of eight slots. Find three keys, far enough apart not to be stored densely, that
+        // all hash to the last slot so that two of them are stored at the start
+        int mask = 7;
+        long[] keys = new long[4];
+        int found = 0;
+        for (long key = 0; found < keys.length; key += 1000) {
+            if (slot(key, mask) == mask) {
+                keys[found++] = key;
+            }
+        }
+        LongEnumTable table = LongEnumTable.compile(mappingsOf(keys[0], keys[1], keys[2]));
+        assertEquals("OpenAddressing", layoutOf(table));
+        for (int i = 0; i < 3; i++) {
+            assertEquals(Long.toString(keys[i]), table.get(keys[i]));
+        }
+        // Collides with all three, so is only missed after probing past the wrap
+        assertNull(table.get(keys[3]));
+    }
+
+}
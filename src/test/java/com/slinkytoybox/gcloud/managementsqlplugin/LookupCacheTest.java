@@ -0,0 +1,86 @@
+/*
+ *   management-sql-plugin - LookupCacheTest.java
+ *
+ *   Copyright (c) 2022-2023, Slinky Software
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as
+ *   published by the Free Software Foundation, either version 3 of the
+ *   License, or (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   A copy of the GNU Affero General Public License is located in the 
+ *   AGPL-3.0.md supplied with the source code.
+ *
+ */
+package com.slinkytoybox.gcloud.managementsqlplugin;
+
+import java.util.Map;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks that results read before an invalidation are never cached over it.
+ *
+ * @author Michael Junek (michael@juneks.com.au)
+ */
+class LookupCacheTest {
+
+    private static final LookupResult RESULT = LookupResult.success("1", Map.of());
+
+    @Test
+    void storesResult() {
+        LookupCache cache = new LookupCache(10);
+        assertTrue(cache.put("1", RESULT, System.nanoTime()));
+        assertSame(RESULT, cache.get("1").getResult());
+    }
+
+    @Test
+    void refusesResultOfLookupStartedBeforeInvalidation() {
+        LookupCache cache = new LookupCache(10);
+        long lookupStart = System.nanoTime();
+        assertFalse(cache.invalidate("1"));
+        assertFalse(cache.put("1", RESULT, lookupStart));
+        assertNull(cache.get("1"));
+    }
+
+    @Test
+    void storesResultOfLookupStartedAfterInvalidation() {
+        LookupCache cache = new LookupCache(10);
+        cache.put("1", RESULT, System.nanoTime());
+        assertTrue(cache.invalidate("1"));
+        assertNull(cache.get("1"));
+        assertTrue(cache.put("1", RESULT, System.nanoTime()));
+        assertNotNull(cache.get("1"));
+    }
+
+    @Test
+    void invalidationOnlyAffectsItsKey() {
+        LookupCache cache = new LookupCache(10);
+        long lookupStart = System.nanoTime();
+        cache.invalidate("1");
+        assertTrue(cache.put("2", RESULT, lookupStart));
+    }
+
+    @Test
+    void forgottenInvalidationStillRefusesOlderLookups() {
+        LookupCache cache = new LookupCache(2);
+        long lookupStart = System.nanoTime();
+        cache.invalidate("1");
+        cache.invalidate("2");
+        cache.invalidate("3");
+        // The invalidation of key 1 is no longer held, so any lookup started before it is refused
+        assertFalse(cache.put("1", RESULT, lookupStart));
+        assertFalse(cache.put("4", RESULT, lookupStart));
+        assertTrue(cache.put("4", RESULT, System.nanoTime()));
+    }
+
+}